@@ -0,0 +1,245 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.DownloadJournal;
+
+import freenet.keys.FreenetURI;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Remembers the CHK a content was inserted as, so inserting the same
+ * content again can be skipped. The key is a SHA-256 over the content
+ * hash, the mime type and the compressor descriptor, all of which change
+ * the CHK. Least recently used entries are dropped beyond the max size.
+ *
+ * On disk the cache is a binary index of fixed records (key, routing key,
+ * crypto key, extra), appended on each put and rewritten in LRU order on
+ * close or when it grew to twice the entries. A torn record at the end is
+ * ignored.
+ */
+public class ChkCache {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(ChkCache.class);
+	}
+
+	public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+	private static final int MAGIC = 0x53544343; // STCC
+	private static final int VERSION = 1;
+	private static final int KEY_LENGTH = 32;
+	private static final int ROUTING_KEY_LENGTH = 32;
+	private static final int CRYPTO_KEY_LENGTH = 32;
+	private static final int EXTRA_LENGTH = 5;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File _file;
+	private final int _maxEntries;
+	// value: routing key, crypto key and extra in one array
+	private final LinkedHashMap<ByteArrayWrapper, byte[]> _entries;
+	private DataOutputStream _out;
+	// records in the file, including replaced and dropped ones
+	private int _records;
+	// after a write error the cache goes on in memory only
+	private boolean _broken;
+	private boolean _closed;
+
+	public ChkCache(File file, int maxEntries) {
+		_file = file;
+		_maxEntries = Math.max(1, maxEntries);
+		_entries = new LinkedHashMap<ByteArrayWrapper, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+		try {
+			load();
+		} catch (IOException e) {
+			// starts empty, the file is replaced on the next write
+			Logger.error(this, "Can't read CHK cache " + _file, e);
+			_entries.clear();
+			_records = 0;
+		}
+	}
+
+	/** the key of a content, see the class comment */
+	public static byte[] getKey(String contentHash, String mimeType, String compressor) {
+		MessageDigest md = DownloadJournal.getDigest();
+		try {
+			md.update(contentHash.getBytes("UTF-8"));
+			md.update((byte) 0);
+			if (mimeType != null)
+				md.update(mimeType.getBytes("UTF-8"));
+			md.update((byte) 0);
+			if (compressor != null)
+				md.update(compressor.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("UTF-8 not supported", e);
+		}
+		return md.digest();
+	}
+
+	/** @return the CHK, null if the content is not known */
+	public synchronized FreenetURI get(byte[] key) {
+		byte[] value = _entries.get(new ByteArrayWrapper(key));
+		if (value == null)
+			return null;
+		byte[] routingKey = new byte[ROUTING_KEY_LENGTH];
+		byte[] cryptoKey = new byte[CRYPTO_KEY_LENGTH];
+		byte[] extra = new byte[EXTRA_LENGTH];
+		System.arraycopy(value, 0, routingKey, 0, ROUTING_KEY_LENGTH);
+		System.arraycopy(value, ROUTING_KEY_LENGTH, cryptoKey, 0, CRYPTO_KEY_LENGTH);
+		System.arraycopy(value, ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH, extra, 0, EXTRA_LENGTH);
+		return new FreenetURI("CHK", null, routingKey, cryptoKey, extra);
+	}
+
+	public synchronized void put(byte[] key, FreenetURI chk) {
+		if (_closed)
+			return;
+		byte[] value = toValue(chk);
+		if (value == null) {
+			Logger.error(this, "Not a CHK, not cached: " + chk);
+			return;
+		}
+		_entries.put(new ByteArrayWrapper(key), value);
+		if (_broken)
+			return;
+		if ((_records == 0) || (_records >= 2 * _maxEntries)) {
+			// a new file, or one with mostly dropped or repeated records
+			rewrite();
+			return;
+		}
+		try {
+			if (_out == null)
+				_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file, true)));
+			_out.write(key);
+			_out.write(value);
+			// a put is one insert, a flush each is cheap
+			_out.flush();
+			_records++;
+		} catch (IOException e) {
+			writeFailed(e);
+		}
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/** write the index compacted, in LRU order */
+	public synchronized void close() {
+		if (_closed)
+			return;
+		_closed = true;
+		if (!_broken)
+			rewrite();
+		Closer.close(_out);
+		_out = null;
+	}
+
+	private static byte[] toValue(FreenetURI chk) {
+		if (!"CHK".equals(chk.getKeyType()))
+			return null;
+		byte[] routingKey = chk.getRoutingKey();
+		byte[] cryptoKey = chk.getCryptoKey();
+		byte[] extra = chk.getExtra();
+		if ((routingKey == null) || (routingKey.length != ROUTING_KEY_LENGTH) ||
+				(cryptoKey == null) || (cryptoKey.length != CRYPTO_KEY_LENGTH) ||
+				(extra == null) || (extra.length != EXTRA_LENGTH))
+			return null;
+		byte[] value = new byte[ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH + EXTRA_LENGTH];
+		System.arraycopy(routingKey, 0, value, 0, ROUTING_KEY_LENGTH);
+		System.arraycopy(cryptoKey, 0, value, ROUTING_KEY_LENGTH, CRYPTO_KEY_LENGTH);
+		System.arraycopy(extra, 0, value, ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH, EXTRA_LENGTH);
+		return value;
+	}
+
+	private void load() throws IOException {
+		if (!_file.exists())
+			return;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION))
+				throw new IOException("Not a CHK cache or unknown version");
+			while (true) {
+				byte[] key = new byte[KEY_LENGTH];
+				byte[] value = new byte[ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH + EXTRA_LENGTH];
+				try {
+					dis.readFully(key);
+					dis.readFully(value);
+				} catch (EOFException e) {
+					break;
+				}
+				// later records are more recent
+				_entries.put(new ByteArrayWrapper(key), value);
+				_records++;
+			}
+		} finally {
+			Closer.close(dis);
+		}
+		if (((_file.length() - 8) % (KEY_LENGTH + ROUTING_KEY_LENGTH + CRYPTO_KEY_LENGTH + EXTRA_LENGTH)) != 0) {
+			// appending would be misaligned, rewrite on the next put
+			_records = 0;
+		}
+		if (logMINOR)
+			Logger.minor(this, "Loaded " + _entries.size() + " CHKs from " + _records + " records");
+	}
+
+	private void writeFailed(IOException e) {
+		Logger.error(this, "Can't write CHK cache " + _file + ", keeping it in memory only", e);
+		Closer.close(_out);
+		_out = null;
+		_broken = true;
+	}
+
+	private void rewrite() {
+		Closer.close(_out);
+		_out = null;
+		File dir = _file.getParentFile();
+		if ((dir != null) && !dir.isDirectory())
+			dir.mkdirs();
+		File tempFile = new File(_file.getPath() + TEMP_SUFFIX);
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			for (Map.Entry<ByteArrayWrapper, byte[]> entry : _entries.entrySet()) {
+				dos.write(entry.getKey().get());
+				dos.write(entry.getValue());
+			}
+			dos.close();
+			dos = null;
+			if (!FileUtil.renameTo(tempFile, _file))
+				throw new IOException("Can't replace " + _file);
+			_records = Math.max(1, _entries.size());
+		} catch (IOException e) {
+			writeFailed(e);
+		} finally {
+			Closer.close(dos);
+		}
+	}
+}
@@ -4,7 +4,23 @@ public class Constants {
 
 	public final static String DL_TYPE_TAR7Z = "tar7z";
 	public final static String DL_TYPE_TARGZ = "targz";
+	public final static String DL_TYPE_TARGZ_PARALLEL = "targzmt";
 	public final static String DL_TYPE_TAR = "tar";
 	public final static String DL_TYPE_ZIP = "zip";
 
+	/** checkpoint journals of site downloads, one sub directory per session */
+	public final static String DOWNLOAD_JOURNAL_DIR = "sitetool-downloads";
+
+	/** one file per persistent session, see SessionStore */
+	public final static String SESSION_STORE_DIR = "sitetool-sessions";
+
+	/** full logs of USK heal sessions, one file per session */
+	public final static String HEAL_LOG_DIR = "sitetool-logs";
+
+	/** what was inserted for each file of a site, see SiteRecord */
+	public final static String SITE_RECORD_DIR = "sitetool-sites";
+
+	/** index of content hash to CHK, see ChkCache */
+	public final static String CHK_CACHE_FILE = "sitetool-chkcache.dat";
+
 }
@@ -0,0 +1,239 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.async.ManifestElement;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Plans how the files of a site are split up for an insert. Files from
+ * the externalize threshold up are inserted on their own and redirected
+ * to from the manifest. The others are packed into containers of about
+ * the max container size, see {@link PlannedManifestPutter}.
+ *
+ * Containers follow the directories, the way a site is fetched: the root
+ * container holds the files of the root directory, the default document
+ * first, then each sub directory in name order as long as it fits as a
+ * whole. A sub directory that doesn't fit gets a container of its own,
+ * filled the same way. The files of one directory are never split, a
+ * container is bigger than the limit only if one directory's files are.
+ *
+ * Block counts are estimates from the uncompressed sizes: a CHK block
+ * holds 32 KiB, anything bigger is a splitfile with as many check blocks
+ * as data blocks plus one for its metadata.
+ */
+public class ContainerPlanner {
+
+	public static final long DEFAULT_MAX_CONTAINER_SIZE = 2 * 1024 * 1024;
+	public static final long DEFAULT_EXTERNALIZE_THRESHOLD = 512 * 1024;
+	public static final String DEFAULT_NAME = "index.html";
+
+	private static final int BLOCK_SIZE = 32 * 1024;
+
+	public static class Container {
+		private final String _path;
+		private final List<ManifestListing.Item> _items = new ArrayList<ManifestListing.Item>();
+		private long _size;
+
+		Container(String path) {
+			_path = path;
+		}
+
+		/** directory the container starts at, like 'dir/sub', "" for the root */
+		public String getPath() {
+			return _path;
+		}
+
+		public List<ManifestListing.Item> getItems() {
+			return _items;
+		}
+
+		/** uncompressed size of the files */
+		public long getSize() {
+			return _size;
+		}
+
+		public int getBlockCount() {
+			return estimateBlocks(_size);
+		}
+	}
+
+	public static class Plan {
+		private final long _maxContainerSize;
+		private final long _externalizeThreshold;
+		private final List<Container> _containers = new ArrayList<Container>();
+		private final Map<String, Container> _byPath = new HashMap<String, Container>();
+		private final List<ManifestListing.Item> _externals = new ArrayList<ManifestListing.Item>();
+		private int _redirects;
+
+		Plan(long maxContainerSize, long externalizeThreshold) {
+			_maxContainerSize = maxContainerSize;
+			_externalizeThreshold = externalizeThreshold;
+		}
+
+		private Container addContainer(String path) {
+			Container container = new Container(path);
+			_containers.add(container);
+			_byPath.put(path, container);
+			return container;
+		}
+
+		/** the root container first */
+		public List<Container> getContainers() {
+			return _containers;
+		}
+
+		/** @return the container starting at the directory, null if the directory is in its parent's */
+		public Container getContainer(String dirPath) {
+			return _byPath.get(dirPath);
+		}
+
+		/** files to be inserted on their own */
+		public List<ManifestListing.Item> getExternals() {
+			return _externals;
+		}
+
+		/** items that are redirects already, nothing to insert */
+		public int getRedirectCount() {
+			return _redirects;
+		}
+
+		/** estimated blocks of the whole insert, the root container is the manifest */
+		public int getBlockCount() {
+			int blocks = 0;
+			for (Container container : _containers)
+				blocks += container.getBlockCount();
+			for (ManifestListing.Item item : _externals)
+				blocks += estimateBlocks(item.element.getSize());
+			return blocks;
+		}
+
+		/** the dry run report, one subset per container and external file */
+		public SimpleFieldSet toFieldSet() {
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.put("MaxContainerSize", _maxContainerSize);
+			sfs.put("ExternalizeThreshold", _externalizeThreshold);
+			sfs.put("Containers", _containers.size());
+			for (int i = 0; i < _containers.size(); i++) {
+				Container container = _containers.get(i);
+				List<ManifestListing.Item> items = container.getItems();
+				String prefix = "Container." + i + '.';
+				sfs.putSingle(prefix + "Path", '/' + container.getPath());
+				sfs.put(prefix + "Files", items.size());
+				sfs.put(prefix + "Size", container.getSize());
+				sfs.put(prefix + "Blocks", container.getBlockCount());
+				if (!items.isEmpty()) {
+					sfs.putSingle(prefix + "First", items.get(0).path);
+					sfs.putSingle(prefix + "Last", items.get(items.size() - 1).path);
+				}
+			}
+			sfs.put("Externals", _externals.size());
+			for (int i = 0; i < _externals.size(); i++) {
+				ManifestListing.Item item = _externals.get(i);
+				String prefix = "External." + i + '.';
+				sfs.putSingle(prefix + "Name", item.path);
+				sfs.put(prefix + "Size", item.element.getSize());
+				sfs.put(prefix + "Blocks", estimateBlocks(item.element.getSize()));
+			}
+			sfs.put("Redirects", _redirects);
+			sfs.put("Blocks", getBlockCount());
+			return sfs;
+		}
+	}
+
+	private final long _maxContainerSize;
+	private final long _externalizeThreshold;
+
+	/**
+	 * @param externalizeThreshold files this big and bigger are inserted
+	 * on their own, 0 to keep all files in containers
+	 */
+	public ContainerPlanner(long maxContainerSize, long externalizeThreshold) {
+		_maxContainerSize = Math.max(BLOCK_SIZE, maxContainerSize);
+		_externalizeThreshold = Math.max(0, externalizeThreshold);
+	}
+
+	public Plan plan(ManifestTree tree) {
+		return plan(tree, DEFAULT_NAME);
+	}
+
+	/** @param defaultName the default document, first in its container */
+	public Plan plan(ManifestTree tree, String defaultName) {
+		Plan plan = new Plan(_maxContainerSize, _externalizeThreshold);
+		Map<ManifestTree.Dir, Long> sizes = new IdentityHashMap<ManifestTree.Dir, Long>();
+		inlineSize(tree.getRoot(), sizes);
+		planDir(plan, tree.getRoot(), "", plan.addContainer(""), defaultName, sizes);
+		return plan;
+	}
+
+	private void planDir(Plan plan, ManifestTree.Dir dir, String path, Container container, String defaultName, Map<ManifestTree.Dir, Long> sizes) {
+		String prefix = (path.length() == 0) ? "" : (path + '/');
+		String[] names = dir.getNames();
+		List<String> subDirs = new ArrayList<String>();
+		// the default document is what is fetched first
+		if (dir.get(defaultName) instanceof ManifestElement)
+			planFile(plan, prefix + defaultName, (ManifestElement) dir.get(defaultName), container);
+		for (String name : names) {
+			Object o = dir.get(name);
+			if (o instanceof ManifestTree.Dir)
+				subDirs.add(name);
+			else if (!name.equals(defaultName))
+				planFile(plan, prefix + name, (ManifestElement) o, container);
+		}
+		for (String name : subDirs) {
+			ManifestTree.Dir sub = (ManifestTree.Dir) dir.get(name);
+			long size = sizes.get(sub);
+			Container target = container;
+			if ((size > 0) && (container._size + size > _maxContainerSize))
+				target = plan.addContainer(prefix + name);
+			planDir(plan, sub, prefix + name, target, defaultName, sizes);
+		}
+	}
+
+	private void planFile(Plan plan, String path, ManifestElement element, Container container) {
+		if (element.getData() == null) {
+			plan._redirects++;
+			return;
+		}
+		ManifestListing.Item item = new ManifestListing.Item(path, element);
+		long size = element.getSize();
+		if (isExternal(size)) {
+			plan._externals.add(item);
+			return;
+		}
+		container._items.add(item);
+		container._size += size;
+	}
+
+	/** size of the files of the directory and below that go into containers */
+	private long inlineSize(ManifestTree.Dir dir, Map<ManifestTree.Dir, Long> sizes) {
+		long size = 0;
+		for (String name : dir.getNames()) {
+			Object o = dir.get(name);
+			if (o instanceof ManifestTree.Dir) {
+				size += inlineSize((ManifestTree.Dir) o, sizes);
+			} else {
+				ManifestElement element = (ManifestElement) o;
+				if ((element.getData() != null) && !isExternal(element.getSize()))
+					size += element.getSize();
+			}
+		}
+		sizes.put(dir, size);
+		return size;
+	}
+
+	private boolean isExternal(long size) {
+		return (_externalizeThreshold > 0) && (size >= _externalizeThreshold);
+	}
+
+	static int estimateBlocks(long size) {
+		if (size <= BLOCK_SIZE)
+			return 1;
+		long dataBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return (int) Math.min(Integer.MAX_VALUE, 2 * dataBlocks + 1);
+	}
+}
@@ -0,0 +1,239 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import freenet.client.DefaultMIMETypes;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.FileBucket;
+
+/**
+ * Walks a local directory tree with a few workers on the executor. Each
+ * worker takes a directory from a shared queue, lists it, guesses the mime
+ * type of each file, hashes it, and queues the sub directories. A listener
+ * gets each finished directory, so progress can be reported while the
+ * scan goes on. Directories are visited once even if links lead to them
+ * twice. Links that lead out of the scanned directory are not followed.
+ */
+public class DirectoryScanner {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(DirectoryScanner.class);
+	}
+
+	public static final int DEFAULT_WORKERS = 4;
+
+	public static class ScannedFile {
+		/** path in the site, like 'dir/file.html' */
+		public final String path;
+		public final File file;
+		public final String mimeType;
+		public final long size;
+		public final long lastModified;
+		/** hex SHA-256 */
+		public final String hash;
+
+		ScannedFile(String path, File file, String mimeType, long size, long lastModified, String hash) {
+			this.path = path;
+			this.file = file;
+			this.mimeType = mimeType;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		/** true if size and modification time are still the scanned ones, so is the hash then */
+		public boolean isUnchanged() {
+			return (file.length() == size) && (file.lastModified() == lastModified);
+		}
+
+		/** read only bucket of the file */
+		public FileBucket getBucket() {
+			return new FileBucket(file, true, false, false, false, false);
+		}
+	}
+
+	/** called from the workers, must be thread safe */
+	public interface Listener {
+		/** @param dirPath path in the site with trailing '/', "" for the top */
+		void onDirectory(String dirPath, List<ScannedFile> files, List<String> errors);
+	}
+
+	private final Executor _executor;
+	private final int _workers;
+	// canonical path of the scanned directory, with trailing separator
+	private volatile String _rootPath;
+
+	// guarded by this
+	private final LinkedList<String[]> _queue;
+	private final Set<String> _visited;
+	private final List<ScannedFile> _files;
+	private final List<String> _errors;
+	private int _busy;
+	private boolean _cancelled;
+
+	public DirectoryScanner(Executor executor, int workers) {
+		_executor = executor;
+		_workers = Math.max(1, workers);
+		_queue = new LinkedList<String[]>();
+		_visited = new HashSet<String>();
+		_files = new ArrayList<ScannedFile>();
+		_errors = new ArrayList<String>();
+	}
+
+	/**
+	 * Scan the directory and wait for it.
+	 * @param prefix prepended to the paths, "" or ending with '/'
+	 * @return all files found, the errors are in {@link #getErrors()}
+	 */
+	public List<ScannedFile> scan(File dir, String prefix, final Listener listener) throws IOException {
+		if (!dir.isDirectory())
+			throw new IOException("Not a directory: " + dir);
+		String root = dir.getCanonicalPath();
+		_rootPath = root.endsWith(File.separator) ? root : root + File.separator;
+		synchronized (this) {
+			_queue.add(new String[] { dir.getPath(), prefix });
+			_visited.add(dir.getCanonicalPath());
+		}
+		for (int i = 0; i < _workers; i++) {
+			_executor.execute(new Runnable() {
+				public void run() {
+					work(listener);
+				}
+			});
+		}
+		synchronized (this) {
+			while (!_queue.isEmpty() || (_busy > 0)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return new ArrayList<ScannedFile>(_files);
+		}
+	}
+
+	/** stop queuing directories, the running ones are finished */
+	public synchronized void cancel() {
+		_cancelled = true;
+		_queue.clear();
+		notifyAll();
+	}
+
+	public synchronized boolean isCancelled() {
+		return _cancelled;
+	}
+
+	public synchronized List<String> getErrors() {
+		return new ArrayList<String>(_errors);
+	}
+
+	private void work(Listener listener) {
+		while (true) {
+			String[] next;
+			synchronized (this) {
+				while (_queue.isEmpty()) {
+					if ((_busy == 0) || _cancelled) {
+						notifyAll();
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				next = _queue.removeFirst();
+				_busy++;
+			}
+			try {
+				scanDirectory(new File(next[0]), next[1], listener);
+			} catch (Throwable t) {
+				Logger.error(this, "Error while scanning " + next[0], t);
+				synchronized (this) {
+					_errors.add(next[0] + ": " + t);
+				}
+			} finally {
+				synchronized (this) {
+					_busy--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void scanDirectory(File dir, String dirPath, Listener listener) {
+		File[] entries = dir.listFiles();
+		List<ScannedFile> files = new ArrayList<ScannedFile>();
+		List<String> errors = new ArrayList<String>();
+		if (entries == null) {
+			errors.add("Can't list " + dir);
+		} else {
+			for (File f : entries) {
+				String path = dirPath + f.getName();
+				if (!isInside(f, errors))
+					continue;
+				if (f.isDirectory()) {
+					queueDirectory(f, path + '/', errors);
+				} else if (f.isFile()) {
+					try {
+						String mime = DefaultMIMETypes.guessMIMEType(f.getName(), false);
+						// taken before hashing, a change meanwhile shows later
+						long size = f.length();
+						long lastModified = f.lastModified();
+						String hash = SiteRecord.hash(new FileBucket(f, true, false, false, false, false));
+						files.add(new ScannedFile(path, f, mime, size, lastModified, hash));
+					} catch (IOException e) {
+						errors.add("Can't read " + f + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+		if (logMINOR)
+			Logger.minor(this, "Scanned " + dir + ": " + files.size() + " files");
+		synchronized (this) {
+			_files.addAll(files);
+			_errors.addAll(errors);
+		}
+		if (listener != null)
+			listener.onDirectory(dirPath, files, errors);
+	}
+
+	/** false if f is a link to outside of the scanned directory, or can't be resolved */
+	private boolean isInside(File f, List<String> errors) {
+		try {
+			if (f.getCanonicalPath().startsWith(_rootPath))
+				return true;
+			errors.add("Not following " + f + ", it links out of the scanned directory");
+		} catch (IOException e) {
+			errors.add("Can't resolve " + f + ": " + e.getMessage());
+		}
+		return false;
+	}
+
+	private void queueDirectory(File dir, String dirPath, List<String> errors) {
+		String canonical;
+		try {
+			canonical = dir.getCanonicalPath();
+		} catch (IOException e) {
+			errors.add("Can't resolve " + dir + ": " + e.getMessage());
+			return;
+		}
+		synchronized (this) {
+			if (_cancelled || !_visited.add(canonical))
+				return;
+			_queue.add(new String[] { dir.getPath(), dirPath });
+			notifyAll();
+		}
+	}
+}
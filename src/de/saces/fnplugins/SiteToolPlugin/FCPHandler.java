@@ -1,10 +1,18 @@
 package de.saces.fnplugins.SiteToolPlugin;
 
 import java.net.MalformedURLException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import de.saces.fnplugins.SiteToolPlugin.exception.DuplicateSessionIDException;
 import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.ISessionCommand;
+import de.saces.fnplugins.SiteToolPlugin.sessions.ISessionStatusListener;
+import de.saces.fnplugins.SiteToolPlugin.sessions.SessionCommandMap;
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession.SessionStatus;
 import de.saces.fnplugins.SiteToolPlugin.sessions.SiteEditSession;
 
 import freenet.keys.FreenetURI;
@@ -25,123 +33,183 @@ public class FCPHandler extends AbstractFCPHandler {
 		Logger.registerClass(FCPHandler.class);
 	}
 
-	private final SessionManager sessionMgr;
+	/**
+	 * forwards status changes of a session to a FCP client until it is gone,
+	 * it unsubscribes or the session is removed. Equal for the same reply
+	 * sender and identifier, subscribing again replaces the forwarder.
+	 */
+	private static class StatusForwarder implements ISessionStatusListener {
 
-	FCPHandler(SessionManager sessionManager, PluginContext pluginContext2) {
-		super(pluginContext2);
-		sessionMgr = sessionManager;
+		private final PluginReplySender _replysender;
+		private final String _identifier;
+
+		StatusForwarder(PluginReplySender replysender, String identifier) {
+			_replysender = replysender;
+			_identifier = identifier;
+		}
+
+		public void onStatusChanged(AbstractSiteToolSession session, SessionStatus oldStatus, SessionStatus newStatus) {
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Status", "SessionStatusChanged");
+			sfs.putSingle("Identifier", _identifier);
+			sfs.putSingle("SessionID", session.getSessionID());
+			sfs.putSingle("OldStatus", oldStatus.name());
+			sfs.putSingle("NewStatus", newStatus.name());
+			try {
+				_replysender.send(sfs);
+			} catch (PluginNotFoundException e) {
+				// client is gone
+				session.removeStatusListener(this);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof StatusForwarder))
+				return false;
+			StatusForwarder other = (StatusForwarder) o;
+			return _replysender.equals(other._replysender) && _identifier.equals(other._identifier);
+		}
+
+		@Override
+		public int hashCode() {
+			return _replysender.hashCode() * 31 + _identifier.hashCode();
+		}
 	}
 
-	public void kill() {
-		// TODO Auto-generated method stub
-		
+	private static final int DEFAULT_MAX_SESSIONS = 100;
+	private static final int MAX_SESSIONS = 1000;
+
+	/** a command without session, or one creating it */
+	private interface Command {
+		void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException;
 	}
 
-	@Override
-	public void handle(PluginReplySender replysender, String command, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+	private final SessionManager sessionMgr;
+	private final ChkCache chkCache;
 
-		if (logDEBUG) {
-			Logger.debug(this, "Got Message: ("+command+") "+ params.toOrderedString());
-		}
+	// built once, dispatch is a map lookup
+	private final HashMap<String, Command> commands;
+	// commands for any existing session, session types add their own
+	private final SessionCommandMap<AbstractSiteToolSession> sessionCommands;
 
+	FCPHandler(SessionManager sessionManager, PluginContext pluginContext2, ChkCache cache) {
+		super(pluginContext2);
+		sessionMgr = sessionManager;
+		chkCache = cache;
+		commands = new HashMap<String, Command>();
+		sessionCommands = new SessionCommandMap<AbstractSiteToolSession>();
+		registerCommands();
+	}
+
+	private void registerCommands() {
 		// session less commands
-		if ("IsInsertUSK".equals(command)) {
-			FreenetURI testUri;
-			try {
-				testUri = new FreenetURI(params.get("URI"));
-			} catch (MalformedURLException e) {
-				sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
-				return;
+		commands.put("IsInsertUSK", new Command() {
+			public void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				handleIsInsertUSK(replysender, identifier, params);
 			}
-			if (testUri.isSSKForUSK() || testUri.isUSK()) {
-				byte[] extra = testUri.getExtra();
-				boolean isPriv = (extra[1] == 1);
-				SimpleFieldSet sfs = new SimpleFieldSet(true);
-				sfs.putOverwrite("Status", "Success");
-				sfs.put("Code", 0);
-				sfs.putSingle("Identifier", identifier);
-				sfs.putSingle("Description", "check successful done");
-				sfs.put("IsInsertUSK", isPriv);
-				replysender.send(sfs);
-				return;
+		});
+		commands.put("HGSanitizeURI", new Command() {
+			public void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				handleHGSanitizeURI(replysender, identifier, params);
 			}
-			sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
-			return;
-		}
+		});
+		commands.put("ListSessions", new Command() {
+			public void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				handleListSessions(replysender, identifier, params, data);
+			}
+		});
 
-		if ("HGSanitizeURI".equals(command)) {
-			FreenetURI testUri;
-			FreenetURI baseUri;
-			FreenetURI sUri;
-			FreenetURI uUri;
-			FreenetURI bsUri;
-			FreenetURI buUri;
-			long origEdition;
-			try {
-				testUri = new FreenetURI(params.get("URI"));
-			} catch (MalformedURLException e) {
-				sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
-				return;
+		// new session commands
+		commands.put("NewHgPushSession", new Command() {
+			public void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				String sessionID = getNewSessionID(replysender, identifier, params);
+				if (sessionID == null)
+					return;
+				//session = sessionManager.newSession(replysender, identifier);
+				FCPHandler.sendSuccess(replysender, identifier, "New Session created");
 			}
-			if (!(testUri.isSSKForUSK() || testUri.isUSK())) {
-				sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
-				return;
+		});
+		commands.put("NewSiteSession", new Command() {
+			public void handle(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				String sessionID = getNewSessionID(replysender, identifier, params);
+				if (sessionID == null)
+					return;
+				try {
+					sessionMgr.addSession(new SiteEditSession(sessionID, pluginContext, chkCache));
+				} catch (DuplicateSessionIDException e) {
+					sendError(replysender, STFCPException.DUPLICATE_SESSION, identifier, "Session already exists.");
+					return;
+				}
+				FCPHandler.sendSuccess(replysender, identifier, "New Session created");
 			}
-			if (testUri.hasMetaStrings()) {
-				testUri = testUri.setMetaString(null);
+		});
+
+		// session control
+		sessionCommands.register("CancelSession", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				boolean kill = params.getBoolean("Kill", false);
+				sessionMgr.cancelSession(session.getSessionID());
+				sendSuccess(replysender, identifier, "Session endet.");
 			}
-			origEdition = testUri.getSuggestedEdition();
-
-			baseUri = testUri.setSuggestedEdition(0);
-
-			// turn USK into SSK
-			if (testUri.isUSK()) {
-				uUri = testUri;
-				sUri = testUri.sskForUSK();
-				buUri = baseUri;
-				bsUri = baseUri.sskForUSK();
-			} else {
-				uUri = testUri.uskForSSK();
-				sUri = testUri;
-				buUri = baseUri.uskForSSK();
-				bsUri = baseUri;
+		});
+		sessionCommands.register("RemoveSession", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				sessionMgr.removeSession(session.getSessionID());
 			}
-			testUri = testUri.setSuggestedEdition(origEdition);
-			
-			byte[] extra = testUri.getExtra();
-			boolean isPriv = (extra[1] == 1);
-			SimpleFieldSet sfs = new SimpleFieldSet(true);
-			sfs.putOverwrite("Status", "Success");
-			sfs.put("Code", 0);
-			sfs.putSingle("Identifier", identifier);
-			sfs.putSingle("Description", "sanitize");
-			sfs.put("IsPrivate", isPriv);
-			sfs.put("Edition", origEdition);
-			sfs.putSingle("OrigURI", testUri.toString(false, false));
-			sfs.putSingle("BaseOrigURI", baseUri.toString(false, false));
-			sfs.putSingle("USK", uUri.toString(false, false));
-			sfs.putSingle("SSK", sUri.toString(false, false));
-			sfs.putSingle("BaseUSK", buUri.toString(false, false));
-			sfs.putSingle("BaseSSK", bsUri.toString(false, false));
-			replysender.send(sfs);
-			return;
-		}
-
-		// session control commands
-		
-		if ("ListSessions".equals(command)) {
-			Set<String> ids = sessionMgr.getSessionNames();
-			for (String id:ids) {
+		});
+		sessionCommands.register("StartSession", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				sessionMgr.startSession(replysender, session.getSessionID());
+			}
+		});
+		sessionCommands.register("GetSessionStatus", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				SimpleFieldSet sfs = session.getProgress().toFieldSet();
+				sfs.putOverwrite("Status", "SessionProgress");
+				sfs.putSingle("Identifier", identifier);
+				sfs.putSingle("SessionID", session.getSessionID());
+				sfs.putSingle("Type", session.getType());
+				replysender.send(sfs);
+			}
+		});
+		sessionCommands.register("SubscribeSession", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				StatusForwarder forwarder = new StatusForwarder(replysender, identifier);
+				// replace the one of an earlier subscribe, no status twice
+				session.removeStatusListener(forwarder);
+				session.addStatusListener(forwarder);
 				SimpleFieldSet sfs = new SimpleFieldSet(true);
-				sfs.putOverwrite("Status", "SessionListing");
-				sfs.putSingle("SessionID", id);
+				sfs.putOverwrite("Status", "SessionStatus");
 				sfs.putSingle("Identifier", identifier);
+				sfs.putSingle("SessionID", session.getSessionID());
+				sfs.putSingle("SessionStatus", session.getStatus().name());
 				replysender.send(sfs);
 			}
-			SimpleFieldSet sfs = new SimpleFieldSet(true);
-			sfs.putOverwrite("Status", "EndSessionListing");
-			sfs.putSingle("Identifier", identifier);
-			replysender.send(sfs, data);
+		});
+		sessionCommands.register("UnsubscribeSession", new ISessionCommand<AbstractSiteToolSession>() {
+			public void handle(AbstractSiteToolSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.removeStatusListener(new StatusForwarder(replysender, identifier));
+				sendSuccess(replysender, identifier, "Unsubscribed");
+			}
+		});
+	}
+
+	public void kill() {
+		// TODO Auto-generated method stub
+		
+	}
+
+	@Override
+	public void handle(PluginReplySender replysender, String command, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+
+		if (logDEBUG) {
+			Logger.debug(this, "Got Message: ("+command+") "+ params.toOrderedString());
+		}
+
+		Command cmd = commands.get(command);
+		if (cmd != null) {
+			cmd.handle(replysender, identifier, params, data, accesstype);
 			return;
 		}
 
@@ -154,179 +222,183 @@ public class FCPHandler extends AbstractFCPHandler {
 
 		AbstractSiteToolSession session = sessionMgr.getSession(sessionID);
 
-		// new session commands
-		if ("NewHgPushSession".equals(command)) {
-			if (session != null) {
-				sendError(replysender, STFCPException.DUPLICATE_SESSION, identifier, "Session already exists.");
-				return;
-			}
-			//session = sessionManager.newSession(replysender, identifier);
-			FCPHandler.sendSuccess(replysender, identifier, "New Session created");
+		if (session == null) {
+			sendError(replysender, STFCPException.NO_SUCH_SESSION, identifier, "No such session.");
 			return;
 		}
 
-		if ("NewSiteSession".equals(command)) {
-			if (session != null) {
-				sendError(replysender, STFCPException.DUPLICATE_SESSION, identifier, "Session already exists.");
-				return;
-			}
-			session = new SiteEditSession(sessionID, pluginContext);
-			try {
-				sessionMgr.addSession(session);
-			} catch (DuplicateSessionIDException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				sendError(replysender, STFCPException.DUPLICATE_SESSION, identifier, "Session already exists.");
-				return;
-			}
-			//session = sessionManager.newSession(replysender, identifier);
-			FCPHandler.sendSuccess(replysender, identifier, "New Session created");
+		if (sessionCommands.dispatch(session, command, replysender, identifier, params, data, accesstype))
 			return;
-		}
 
-//		if ("OpenSession".equals(command)) {
-//			if (session != null) {
-//				sendError(replysender, STFCPException.DUPLICATE_SESSION_RUNNING, identifier, "Session already started.");
-//				return;
-//			}
-//
-//			if (logDEBUG) {
-//				Logger.debug(this, "Open Session: " + identifier);
-//			}
-//
-//			FreenetURI oldUri;
-//			try {
-//				oldUri = new FreenetURI(params.get("OldURI"));
-//			} catch (MalformedURLException e) {
-//				sendError(replysender, STFCPException.INVALID_OLDURI, identifier, "Parameter 'OldURI' invalid: "+e.getMessage());
-//				return;
-//			}
-//			if (oldUri == null) {
-//				sendError(replysender, STFCPException.MISSING_OLDURI, identifier, "Parameter 'OldURI' (previous edition) missing for session.");
-//				return;
-//			}
-//
-//			if (logDEBUG) {
-//				Logger.debug(this, "Open Session: uri seems valid" + oldUri.toString(false, false));
-//			}
-//
-//			Metadata md;
-//			try {
-//				md = KeyExplorerUtils.simpleManifestGet(pluginContext.pluginRespirator, oldUri);
-//			} catch (MetadataParseException e) {
-//				Logger.error(this, "Parameter 'OldURI' failed to fetch.", e);
-//				sendError(replysender, STFCPException.INVALID_OLDURI, identifier, "Parameter 'OldURI' failed to fetch: "+e.getMessage());
-//				return;
-//			} catch (IOException e) {
-//				Logger.error(this, "Parameter 'OldURI' failed to fetch.", e);
-//				sendError(replysender, STFCPException.INVALID_OLDURI, identifier, "Parameter 'OldURI' failed to fetch: "+e.getMessage());
-//				return;
-//			} catch (FetchException e) {
-//				Logger.error(this, "Parameter 'OldURI' failed to fetch.", e);
-//				sendError(replysender, STFCPException.INVALID_OLDURI, identifier, "Parameter 'OldURI' failed to fetch: "+e.getMessage());
-//				return;
-//			}
-//			
-//			
-//			// convert metadata
-//			HashMap<String, Object> newMD;
-//			try {
-//				newMD = KeyExplorerUtils.parseMetadata(md, oldUri);
-//			} catch (MalformedURLException e) {
-//				sendError(replysender, FCPException.INTERNAL_ERROR, identifier, "Internal Error: "+e.getMessage());
-//				return;
-//			}
-//			
-//			// start session
-//			//STSession session2 = new STSession(replysender, identifier, oldUri, newMD);
-////			synchronized (sessions) {
-////				sessions.put(identifier, session2);
-////			}
-//			FCPHandler.sendSuccess(replysender, identifier, "Session opened");
-//			return;
-//		}
-
-		if (session == null) {
-			sendError(replysender, STFCPException.NO_SUCH_SESSION, identifier, "No such session.");
+		// anything left is session type specific
+		if (session.handleFCP(replysender, command, identifier, params, data, accesstype))
 			return;
+
+		sendError(replysender, STFCPException.INVALID_COMMAND, identifier, "Unknown command: " + command);
+	}
+
+	/** @return the id for a new session, null if an error was sent */
+	private String getNewSessionID(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		String sessionID = params.get("SessionID");
+		if (sessionID == null || sessionID.trim().length() == 0) {
+			sendError(replysender, STFCPException.MISSING_SESSION_IDENTIFIER, identifier, "Missing session identifier 'SessionID'");
+			return null;
+		}
+		if (sessionMgr.getSession(sessionID) != null) {
+			sendError(replysender, STFCPException.DUPLICATE_SESSION, identifier, "Session already exists.");
+			return null;
 		}
+		return sessionID;
+	}
 
-		// session control
-		if ("CancelSession".equals(command)) {
-			boolean kill = params.getBoolean("Kill", false);
-			sessionMgr.cancelSession(sessionID);
-			sendSuccess(replysender, identifier, "Session endet.");
+	private void handleIsInsertUSK(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		FreenetURI testUri;
+		try {
+			testUri = new FreenetURI(params.get("URI"));
+		} catch (MalformedURLException e) {
+			sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
 			return;
 		}
-
-		if ("RemoveSession".equals(command)) {
-			sessionMgr.removeSession(sessionID);
+		if (testUri.isSSKForUSK() || testUri.isUSK()) {
+			byte[] extra = testUri.getExtra();
+			boolean isPriv = (extra[1] == 1);
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Status", "Success");
+			sfs.put("Code", 0);
+			sfs.putSingle("Identifier", identifier);
+			sfs.putSingle("Description", "check successful done");
+			sfs.put("IsInsertUSK", isPriv);
+			replysender.send(sfs);
 			return;
 		}
+		sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
+	}
 
-		if ("StartSession".equals(command)) {
-			sessionMgr.startSession(replysender, sessionID);
+	private void handleHGSanitizeURI(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		FreenetURI testUri;
+		FreenetURI baseUri;
+		FreenetURI sUri;
+		FreenetURI uUri;
+		FreenetURI bsUri;
+		FreenetURI buUri;
+		long origEdition;
+		try {
+			testUri = new FreenetURI(params.get("URI"));
+		} catch (MalformedURLException e) {
+			sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
+			return;
+		}
+		if (!(testUri.isSSKForUSK() || testUri.isUSK())) {
+			sendError(replysender, STFCPException.INVALID_URI, identifier, "Invalid URI");
 			return;
 		}
+		if (testUri.hasMetaStrings()) {
+			testUri = testUri.setMetaString(null);
+		}
+		origEdition = testUri.getSuggestedEdition();
 
-		// anything left forward to session
-		session.handleFCP(replysender, command, params, data, accesstype);
-		
-//		if ("AddItem".equals(command)) {
-//			String name = params.get("Name");
-//			String mime = params.get("ContentType");
-//			session.addItem(replysender, name, mime, data, false, true);
-//			return;
-//		}
-//		
-//		if ("SetDefaultItem".equals(command)) {
-//			FCPHandler.sendNOP(replysender, identifier);
-//			return;
-//		}
-//		
-//		if ("DeleteItem".equals(command)) {
-//			FCPHandler.sendNOP(replysender, identifier);
-//			return;
-//		}
-//		
-//		if ("ModifyItem".equals(command)) {
-//			String name = params.get("Name");
-//			String mime = params.get("ContentType");
-//			//session.addItem(replysender, name, mime, data, true, false);
-//			return;
-//		}
-//		
-//		if ("CommitSession".equals(command)) {
-//			FreenetURI insertUri;
-//			try {
-//				insertUri = new FreenetURI(params.get("InsertURI"));
-//			} catch (MalformedURLException e) {
-//				sendError(replysender, STFCPException.INVALID_INSERTURI, identifier, "Parameter 'OldURI' invalid: "+e.getMessage());
-//				return;
-//			}
-//			if (insertUri == null) {
-//				sendError(replysender, STFCPException.MISSING_INSERTURI, identifier, "Parameter 'OldURI' (previous edition) missing for session.");
-//				return;
-//			}
-//			//session.commit_test(this, replysender, insertUri, pr);
-//			return;
-//		}
-//		
-//		if ("HealFile".equals(command)) {
-//			FCPHandler.sendNOP(replysender, identifier);
-//			return;
-//		}
-//		
-//		if ("HealDir".equals(command)) {
-//			FCPHandler.sendNOP(replysender, identifier);
-//			return;
-//		}
-//		
-//		if ("ListManifest".equals(command)) {
-//			session.listItems(replysender, identifier);
-//			return;
-//		}
+		baseUri = testUri.setSuggestedEdition(0);
+
+		// turn USK into SSK
+		if (testUri.isUSK()) {
+			uUri = testUri;
+			sUri = testUri.sskForUSK();
+			buUri = baseUri;
+			bsUri = baseUri.sskForUSK();
+		} else {
+			uUri = testUri.uskForSSK();
+			sUri = testUri;
+			buUri = baseUri.uskForSSK();
+			bsUri = baseUri;
+		}
+		testUri = testUri.setSuggestedEdition(origEdition);
 		
-		//sendError(replysender, STFCPException.INVALID_COMMAND, identifier, "Unknown command");
+		byte[] extra = testUri.getExtra();
+		boolean isPriv = (extra[1] == 1);
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Status", "Success");
+		sfs.put("Code", 0);
+		sfs.putSingle("Identifier", identifier);
+		sfs.putSingle("Description", "sanitize");
+		sfs.put("IsPrivate", isPriv);
+		sfs.put("Edition", origEdition);
+		sfs.putSingle("OrigURI", testUri.toString(false, false));
+		sfs.putSingle("BaseOrigURI", baseUri.toString(false, false));
+		sfs.putSingle("USK", uUri.toString(false, false));
+		sfs.putSingle("SSK", sUri.toString(false, false));
+		sfs.putSingle("BaseUSK", buUri.toString(false, false));
+		sfs.putSingle("BaseSSK", bsUri.toString(false, false));
+		replysender.send(sfs);
+	}
+
+	/**
+	 * One page of sessions in id order, a SessionListing per session and a
+	 * final EndSessionListing with the cursor for the next page.
+	 * Parameters: After (cursor), MaxResults, Status and Type (comma
+	 * separated lists, a session must match one of each).
+	 */
+	private void handleListSessions(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data) throws PluginNotFoundException {
+		String after = params.get("After");
+		int maxResults = Math.max(1, Math.min(params.getInt("MaxResults", DEFAULT_MAX_SESSIONS), MAX_SESSIONS));
+		Set<SessionStatus> statusFilter = null;
+		String statusParam = params.get("Status");
+		if (statusParam != null) {
+			statusFilter = EnumSet.noneOf(SessionStatus.class);
+			for (String status : statusParam.split(",")) {
+				try {
+					statusFilter.add(SessionStatus.valueOf(status.trim()));
+				} catch (IllegalArgumentException e) {
+					sendError(replysender, STFCPException.INVALID_PARAMETER, identifier, "Invalid session status: " + status);
+					return;
+				}
+			}
+		}
+		Set<String> typeFilter = null;
+		String typeParam = params.get("Type");
+		if (typeParam != null) {
+			typeFilter = new HashSet<String>();
+			for (String type : typeParam.split(","))
+				typeFilter.add(type.trim());
+		}
+
+		// sorted for a stable cursor
+		TreeSet<String> ids = new TreeSet<String>(sessionMgr.getSessionNames());
+		Set<String> page = (after == null) ? ids : ids.tailSet(after);
+		int count = 0;
+		boolean more = false;
+		String cursor = null;
+		for (String id:page) {
+			if (id.equals(after))
+				continue;
+			AbstractSiteToolSession session = sessionMgr.getSession(id);
+			if (session == null)
+				continue;
+			SessionStatus status = session.getStatus();
+			if ((statusFilter != null) && !statusFilter.contains(status))
+				continue;
+			if ((typeFilter != null) && !typeFilter.contains(session.getType()))
+				continue;
+			if (count == maxResults) {
+				more = true;
+				break;
+			}
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Status", "SessionListing");
+			sfs.putSingle("SessionID", id);
+			sfs.putSingle("Identifier", identifier);
+			sfs.putSingle("Type", session.getType());
+			sfs.putSingle("SessionStatus", status.name());
+			replysender.send(sfs);
+			count++;
+			cursor = id;
+		}
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Status", "EndSessionListing");
+		sfs.putSingle("Identifier", identifier);
+		sfs.put("Count", count);
+		sfs.put("More", more);
+		if (more)
+			sfs.putSingle("Cursor", cursor);
+		replysender.send(sfs, data);
 	}
 }
@@ -0,0 +1,129 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.async.ManifestElement;
+
+/**
+ * One page of a manifest listing. Items are listed depth first with the
+ * names of each directory sorted, which is also the order of the cursor:
+ * a page starts after the item whose path is given as cursor, so the path
+ * of the last item of a page is the cursor of the next one. Directories
+ * entirely before the cursor or outside the path prefix are not visited.
+ */
+public class ManifestListing {
+
+	public static final int DEFAULT_MAX_RESULTS = 500;
+	public static final int MAX_RESULTS = 5000;
+
+	public static class Item {
+		/** full path, like 'dir/file.html' */
+		public final String path;
+		public final ManifestElement element;
+
+		Item(String path, ManifestElement element) {
+			this.path = path;
+			this.element = element;
+		}
+
+		/** directory part of the path with leading and trailing '/' */
+		public String getDirectory() {
+			int i = path.lastIndexOf('/');
+			return (i < 0) ? "/" : ('/' + path.substring(0, i + 1));
+		}
+	}
+
+	private final String[] _after;
+	private final String _prefix;
+	private final int _maxResults;
+	private final List<Item> _items;
+	private boolean _more;
+
+	/**
+	 * @param after cursor, null to start at the beginning
+	 * @param prefix only list paths starting with it, null for all
+	 * @param maxResults clamped to 1..{@link #MAX_RESULTS}
+	 */
+	public ManifestListing(String after, String prefix, int maxResults) {
+		_after = ((after == null) || (after.length() == 0)) ? null : after.split("/");
+		_prefix = ((prefix == null) || (prefix.length() == 0)) ? null : prefix;
+		_maxResults = Math.max(1, Math.min(maxResults, MAX_RESULTS));
+		_items = new ArrayList<Item>();
+	}
+
+	public void list(ManifestTree tree) {
+		walk(tree.getRoot(), new ArrayList<String>(), "");
+	}
+
+	public List<Item> getItems() {
+		return _items;
+	}
+
+	/** true if there are items after this page */
+	public boolean hasMore() {
+		return _more;
+	}
+
+	/** cursor for the next page, null if the page is empty */
+	public String getCursor() {
+		return _items.isEmpty() ? null : _items.get(_items.size() - 1).path;
+	}
+
+	/** @return false once the page is full */
+	private boolean walk(ManifestTree.Dir dir, List<String> segments, String dirPath) {
+		String[] names = dir.getNames();
+		for (String name : names) {
+			Object o = dir.get(name);
+			String path = dirPath + name;
+			segments.add(name);
+			try {
+				if (o instanceof ManifestTree.Dir) {
+					if (!isBeforeCursor(segments, true) && matchesPrefix(path + '/', true)) {
+						if (!walk((ManifestTree.Dir) o, segments, path + '/'))
+							return false;
+					}
+				} else if (o instanceof ManifestElement) {
+					if (!isBeforeCursor(segments, false) && matchesPrefix(path, false)) {
+						if (_items.size() == _maxResults) {
+							_more = true;
+							return false;
+						}
+						_items.add(new Item(path, (ManifestElement) o));
+					}
+				}
+			} finally {
+				segments.remove(segments.size() - 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param isDir a directory is only before the cursor if everything in
+	 * it is, i.e. if it is not a parent of the cursor
+	 */
+	private boolean isBeforeCursor(List<String> segments, boolean isDir) {
+		if (_after == null)
+			return false;
+		int n = Math.min(segments.size(), _after.length);
+		for (int i = 0; i < n; i++) {
+			int c = segments.get(i).compareTo(_after[i]);
+			if (c != 0)
+				return c < 0;
+		}
+		if (isDir)
+			return false;
+		// the cursor item itself is on the previous page
+		return segments.size() <= _after.length;
+	}
+
+	private boolean matchesPrefix(String path, boolean isDir) {
+		if (_prefix == null)
+			return true;
+		if (path.startsWith(_prefix))
+			return true;
+		// a directory on the way to the prefix
+		return isDir && _prefix.startsWith(path);
+	}
+}
@@ -0,0 +1,299 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.client.async.ManifestElement;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+/**
+ * The items of a site, as a tree of directories. Each directory is an
+ * open addressed table of name to sub directory or {@link ManifestElement},
+ * two arrays instead of a HashMap with an entry object per item. Path
+ * segments are interned per tree, a name used in many directories (like
+ * 'index.html' or 'images') is held once.
+ *
+ * Lookups walk the path in place, without splitting it. Not thread safe.
+ * {@link #toHashMap()} gives the nested HashMap form DefaultManifestPutter
+ * wants.
+ */
+public class ManifestTree {
+
+	/** see {@link ManifestTree#visit(Visitor)} */
+	public interface Visitor {
+		void visit(String path, ManifestElement element);
+	}
+
+	/** open addressed table, keyed by a range of a path */
+	private static class Table {
+
+		private static final int MIN_CAPACITY = 4;
+
+		String[] keys;
+		Object[] values;
+		int size;
+
+		Table() {
+			keys = new String[MIN_CAPACITY];
+			values = new Object[MIN_CAPACITY];
+		}
+
+		/** @return the slot of path[start..end), or -(free slot + 1) */
+		final int find(String path, int start, int end) {
+			int mask = keys.length - 1;
+			int i = hash(path, start, end) & mask;
+			while (true) {
+				String key = keys[i];
+				if (key == null)
+					return -(i + 1);
+				if ((key.length() == end - start) && path.regionMatches(start, key, 0, end - start))
+					return i;
+				i = (i + 1) & mask;
+			}
+		}
+
+		final Object get(String path, int start, int end) {
+			int i = find(path, start, end);
+			return (i < 0) ? null : values[i];
+		}
+
+		/** the key must not be in the table yet */
+		final void add(String key, Object value) {
+			// keep the load at 3/4
+			if ((size + 1) * 4 > keys.length * 3)
+				resize(keys.length * 2);
+			int i = -find(key, 0, key.length()) - 1;
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		private void resize(int capacity) {
+			String[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new String[capacity];
+			values = new Object[capacity];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != null) {
+					int slot = -find(oldKeys[i], 0, oldKeys[i].length()) - 1;
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		/** same as String.hashCode() of the substring, spread */
+		private static int hash(String path, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + path.charAt(i);
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/** a directory, its entries are directories or ManifestElements */
+	public static class Dir extends Table {
+
+		Dir() {
+		}
+
+		/** @return the sub directory or ManifestElement, null if none */
+		public Object get(String name) {
+			return get(name, 0, name.length());
+		}
+
+		/** number of entries (not recursive) */
+		public int size() {
+			return size;
+		}
+
+		/** names of the entries, sorted */
+		public String[] getNames() {
+			String[] names = new String[size];
+			int n = 0;
+			for (String key : keys) {
+				if (key != null)
+					names[n++] = key;
+			}
+			Arrays.sort(names);
+			return names;
+		}
+
+		private HashMap<String, Object> toHashMap() {
+			HashMap<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == null)
+					continue;
+				Object o = values[i];
+				map.put(keys[i], (o instanceof Dir) ? ((Dir) o).toHashMap() : o);
+			}
+			return map;
+		}
+	}
+
+	private final Dir _root;
+	private final Table _segments;
+	private int _elements;
+
+	public ManifestTree() {
+		_root = new Dir();
+		_segments = new Table();
+	}
+
+	/** copy of a manifest in the nested HashMap form */
+	public static ManifestTree fromHashMap(HashMap<String, Object> map) {
+		ManifestTree tree = new ManifestTree();
+		tree.copy(tree._root, map);
+		return tree;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void copy(Dir dir, HashMap<String, Object> map) {
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			Object o = entry.getValue();
+			if (o instanceof HashMap) {
+				Dir sub = new Dir();
+				copy(sub, (HashMap<String, Object>) o);
+				dir.add(intern(entry.getKey()), sub);
+			} else if (o instanceof ManifestElement) {
+				dir.add(intern(entry.getKey()), o);
+				_elements++;
+			}
+		}
+	}
+
+	public Dir getRoot() {
+		return _root;
+	}
+
+	/** number of ManifestElements in the tree */
+	public int size() {
+		return _elements;
+	}
+
+	/** @return the ManifestElement or directory at path, null if none */
+	public Object get(String path) {
+		int i = path.lastIndexOf('/');
+		Dir dir = (i < 0) ? _root : findDir(path, i, false);
+		if (dir == null)
+			return null;
+		return dir.get(path, i + 1, path.length());
+	}
+
+	/**
+	 * @param path like 'dir/sub'
+	 * @return the directory, null if it doesn't exist (and is not to be
+	 * created) or a part of the path is an item
+	 */
+	public Dir getDir(String path, boolean create) {
+		if (path.length() == 0)
+			return _root;
+		return findDir(path, path.length(), create);
+	}
+
+	/**
+	 * Add or replace the item at path, its name is the last segment.
+	 * @return null on success, the error description otherwise
+	 */
+	public String put(String path, String mimeOverride, Bucket data, boolean overwrite, boolean createPath) {
+		return put(path, mimeOverride, data, null, overwrite, createPath);
+	}
+
+	/**
+	 * Add or replace a redirect to already inserted data at path.
+	 * @return null on success, the error description otherwise
+	 */
+	public String putRedirect(String path, String mimeOverride, FreenetURI target, boolean overwrite, boolean createPath) {
+		return put(path, mimeOverride, null, target, overwrite, createPath);
+	}
+
+	private String put(String path, String mimeOverride, Bucket data, FreenetURI target, boolean overwrite, boolean createPath) {
+		int i = path.lastIndexOf('/');
+		Dir dir = (i < 0) ? _root : findDir(path, i, createPath);
+		if (dir == null)
+			return "Not a directory: " + path.substring(0, i);
+		int slot = dir.find(path, i + 1, path.length());
+		if (slot >= 0) {
+			if (dir.values[slot] instanceof Dir)
+				return "Is a directory: " + path;
+			if (!overwrite)
+				return "Duplicate item: " + path;
+			dir.values[slot] = newElement(dir.keys[slot], mimeOverride, data, target);
+			return null;
+		}
+		String name = intern(path, i + 1, path.length());
+		dir.add(name, newElement(name, mimeOverride, data, target));
+		_elements++;
+		return null;
+	}
+
+	private static ManifestElement newElement(String name, String mimeOverride, Bucket data, FreenetURI target) {
+		if (data == null)
+			return new ManifestElement(name, target, mimeOverride);
+		return new ManifestElement(name, data, mimeOverride, data.size());
+	}
+
+	/** call the visitor for each ManifestElement, in no particular order */
+	public void visit(Visitor visitor) {
+		visit(_root, "", visitor);
+	}
+
+	private static void visit(Dir dir, String dirPath, Visitor visitor) {
+		for (int i = 0; i < dir.keys.length; i++) {
+			if (dir.keys[i] == null)
+				continue;
+			Object o = dir.values[i];
+			if (o instanceof Dir)
+				visit((Dir) o, dirPath + dir.keys[i] + '/', visitor);
+			else
+				visitor.visit(dirPath + dir.keys[i], (ManifestElement) o);
+		}
+	}
+
+	/** the directory of path[0..end) */
+	private Dir findDir(String path, int end, boolean create) {
+		Dir dir = _root;
+		int start = 0;
+		while (start < end) {
+			int slash = path.indexOf('/', start);
+			if ((slash < 0) || (slash > end))
+				slash = end;
+			int slot = dir.find(path, start, slash);
+			if (slot >= 0) {
+				Object o = dir.values[slot];
+				if (!(o instanceof Dir))
+					return null;
+				dir = (Dir) o;
+			} else {
+				if (!create)
+					return null;
+				Dir sub = new Dir();
+				dir.add(intern(path, start, slash), sub);
+				dir = sub;
+			}
+			start = slash + 1;
+		}
+		return dir;
+	}
+
+	private String intern(String s) {
+		return intern(s, 0, s.length());
+	}
+
+	private String intern(String path, int start, int end) {
+		int slot = _segments.find(path, start, end);
+		if (slot >= 0)
+			return _segments.keys[slot];
+		// a copy, the substring would keep the whole path alive
+		String segment = new String(path.substring(start, end));
+		_segments.add(segment, null);
+		return segment;
+	}
+
+	/** a new nested HashMap of the tree, as DefaultManifestPutter expects */
+	public HashMap<String, Object> toHashMap() {
+		return _root.toHashMap();
+	}
+}
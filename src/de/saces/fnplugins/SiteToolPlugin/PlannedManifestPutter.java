@@ -0,0 +1,63 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.HashMap;
+
+import freenet.client.InsertContext;
+import freenet.client.InsertException;
+import freenet.client.async.BaseManifestPutter;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientPutCallback;
+import freenet.client.async.ManifestElement;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestClient;
+
+/**
+ * Manifest putter that packs the files into the containers the
+ * {@link ContainerPlanner} plans: a directory that got a container of its
+ * own is a sub container, all others are plain directories in their
+ * parent's container. Big files must have been inserted on their own
+ * before, they are redirects in the manifest.
+ */
+public class PlannedManifestPutter extends BaseManifestPutter {
+
+	// BaseManifestPutter calls makePutHandlers() from its constructor,
+	// before the fields of this class are set
+	private static final ThreadLocal<ContainerPlanner> nextPlanner = new ThreadLocal<ContainerPlanner>();
+
+	public PlannedManifestPutter(ContainerPlanner planner, ClientPutCallback cb, HashMap<String, Object> manifestElements, short prioClass, FreenetURI target, String defaultName, InsertContext ctx, boolean getCHKOnly, RequestClient clientContext, boolean earlyEncode, boolean persistent, byte[] forceCryptoKey, ClientContext context) throws InsertException {
+		super(cb, withPlanner(planner, manifestElements), prioClass, target, defaultName, ctx, getCHKOnly, clientContext, earlyEncode, persistent, forceCryptoKey, context);
+	}
+
+	private static HashMap<String, Object> withPlanner(ContainerPlanner planner, HashMap<String, Object> manifestElements) {
+		nextPlanner.set(planner);
+		return manifestElements;
+	}
+
+	@Override
+	protected void makePutHandlers(HashMap<String, Object> manifestElements, String defaultName) {
+		ContainerPlanner planner = nextPlanner.get();
+		nextPlanner.remove();
+		ManifestTree tree = ManifestTree.fromHashMap(manifestElements);
+		ContainerPlanner.Plan plan = planner.plan(tree, defaultName);
+		makePutHandlers(getRootContainer(), tree.getRoot(), "", plan, defaultName);
+	}
+
+	private void makePutHandlers(ContainerBuilder builder, ManifestTree.Dir dir, String path, ContainerPlanner.Plan plan, String defaultName) {
+		for (String name : dir.getNames()) {
+			Object o = dir.get(name);
+			if (o instanceof ManifestTree.Dir) {
+				String subPath = (path.length() == 0) ? name : (path + '/' + name);
+				if (plan.getContainer(subPath) != null) {
+					makePutHandlers(builder.makeSubContainer(name), (ManifestTree.Dir) o, subPath, plan, defaultName);
+				} else {
+					builder.pushCurrentDir();
+					builder.makeSubDirCD(name);
+					makePutHandlers(builder, (ManifestTree.Dir) o, subPath, plan, defaultName);
+					builder.popCurrentDir();
+				}
+			} else {
+				builder.addItem(name, (ManifestElement) o, (path.length() == 0) && name.equals(defaultName));
+			}
+		}
+	}
+}
@@ -17,6 +17,9 @@ public class STFCPException extends FCPException {
 	public static final int INVALID_URI = 101;
 	public static final int DUPLICATE_SESSION = 102;
 	public static final int NO_SUCH_SESSION = 101;
+	public static final int INVALID_COMMAND = 103;
+	public static final int INVALID_PARAMETER = 104;
+	public static final int ACCESS_DENIED = 105;
 //	public static final int DUPLICATE_SESSION_RUNNING = 101;
 //	public static final int INVALID_OLDURI = 6;
 //	public static final int MISSING_OLDURI = 7;
@@ -1,7 +1,9 @@
 package de.saces.fnplugins.SiteToolPlugin;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.saces.fnplugins.SiteToolPlugin.exception.DuplicateSessionIDException;
 import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
@@ -9,6 +11,7 @@ import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
 import freenet.pluginmanager.PluginReplySender;
 import freenet.support.Executor;
 import freenet.support.Logger;
+import freenet.support.plugins.helpers1.PluginContext;
 
 public class SessionManager {
 
@@ -19,58 +22,124 @@ public class SessionManager {
 		Logger.registerClass(SessionManager.class);
 	}
 
-	private final HashMap<String, AbstractSiteToolSession> _sessions;
+	// concurrent, toadlets and FCP access it at the same time without locking
+	private final ConcurrentHashMap<String, AbstractSiteToolSession> _sessions;
 	private final Executor _executor;
+	private final SessionScheduler _scheduler;
+	private final SessionRetention _retention;
+	private SessionStore _store;
 	
 	SessionManager(Executor executor) {
-		_sessions = new HashMap<String, AbstractSiteToolSession>();
+		_sessions = new ConcurrentHashMap<String, AbstractSiteToolSession>();
 		_executor = executor;
+		_scheduler = new SessionScheduler(executor);
+		_retention = new SessionRetention(this, executor);
+	}
+
+	public SessionScheduler getScheduler() {
+		return _scheduler;
+	}
+
+	public SessionRetention getRetention() {
+		return _retention;
+	}
+
+	/**
+	 * Add the sessions from the store and resume those that were started
+	 * before the restart. New sessions are stored from now on.
+	 */
+	void restoreSessions(SessionStore store, PluginContext pluginContext) {
+		_store = store;
+		List<SessionStore.RestoredSession> restored = store.load(pluginContext);
+		for (SessionStore.RestoredSession rs : restored) {
+			try {
+				addSession(rs.session);
+			} catch (DuplicateSessionIDException e) {
+				Logger.error(this, "Duplicate restored session: " + rs.session.getSessionID());
+				continue;
+			}
+			if (rs.resume)
+				startSession(null, rs.session.getSessionID());
+		}
 	}
 
 	public AbstractSiteToolSession getSession(String identifier) {
 		return _sessions.get(identifier);
 	}
-	
+
+	/**
+	 * @return a live, weakly consistent view of the session ids. Iterating
+	 * it never throws ConcurrentModificationException, sessions added or
+	 * removed meanwhile may or may not show up.
+	 */
 	public Set<String> getSessionNames() {
-		return _sessions.keySet();
+		return Collections.unmodifiableSet(_sessions.keySet());
 	}
 
-	public synchronized void kill() {
+	public void kill() {
+		// keep the stored state, running sessions are resumed next time
+		if (_store != null)
+			_store.close();
+		_retention.kill();
 		for (AbstractSiteToolSession session:_sessions.values()) {
-			session.destroySession();
+			if (_sessions.remove(session.getSessionID(), session))
+				session.destroySession();
 		}
-		_sessions.clear();
-	}
-
-	public AbstractSiteToolSession newSession(PluginReplySender replysender, String identifier) {
-		AbstractSiteToolSession session = null; //;new SiteToolSession(replysender, identifier);
-		synchronized (_sessions) {
-			_sessions.put(identifier, session);
-		}
-		return session;
 	}
 
 	public void addSession(AbstractSiteToolSession session) throws DuplicateSessionIDException {
 		String key = session.getSessionID();
-		if (_sessions.containsKey(key))
+		if (_sessions.putIfAbsent(key, session) != null)
 			throw new DuplicateSessionIDException(key);
-		_sessions.put(key, session);
+		if (_store != null)
+			_store.add(session);
+		session.addStatusListener(_retention);
 	}
 
 	public void startSession(PluginReplySender replysender, String sessionID) {
 		AbstractSiteToolSession session = _sessions.get(sessionID);
-		session.startSession(replysender, _executor);
+		session.queueSession();
+		_scheduler.submit(session, replysender);
 	}
 
 	public void removeSession(String sessionID) {
 		AbstractSiteToolSession session = _sessions.get(sessionID);
+		if (session == null)
+			return;
 		if (!session.checkRemove())
 			throw new IllegalStateException();
-		_sessions.remove(sessionID);
+		// only remove the session checked, not one added meanwhile
+		if (_sessions.remove(sessionID, session))
+			dispose(session);
+	}
+
+	/**
+	 * Remove a session if it is still registered and can be removed.
+	 * @return false if it was removed or restarted meanwhile
+	 */
+	boolean evictSession(AbstractSiteToolSession session) {
+		if (!session.checkRemove())
+			return false;
+		if (!_sessions.remove(session.getSessionID(), session))
+			return false;
+		dispose(session);
+		return true;
+	}
+
+	private void dispose(AbstractSiteToolSession session) {
+		session.removeStatusListener(_retention);
+		if (_store != null)
+			_store.remove(session);
+		// FCP subscriptions end with the session
+		session.clearStatusListeners();
+		session.destroySession();
+		session.purge();
 	}
 	
 	public void cancelSession(String sessionID) {
 		AbstractSiteToolSession session = _sessions.get(sessionID);
+		// a queued session is never run, cancelSession moves it to DONE
+		_scheduler.remove(session);
 		session.cancelSession(_executor);
 	}
 }
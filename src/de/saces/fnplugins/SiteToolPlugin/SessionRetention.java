@@ -0,0 +1,182 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession.SessionStatus;
+import de.saces.fnplugins.SiteToolPlugin.sessions.ISessionStatusListener;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Evicts finished (DONE or ERROR) sessions so their results don't pile up
+ * in temp space. A session is evicted when it finished longer than the max
+ * age ago, or, least recently used first, while the results of all
+ * finished sessions together exceed the byte budget.
+ *
+ * Checked each time a session finishes and periodically for the age.
+ */
+public class SessionRetention implements ISessionStatusListener {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(SessionRetention.class);
+	}
+
+	public static final long DEFAULT_MAX_AGE = 24L * 60 * 60 * 1000;
+	public static final long DEFAULT_MAX_RESULT_BYTES = 1024L * 1024 * 1024;
+
+	private static final long CHECK_INTERVAL = 10L * 60 * 1000;
+
+	private static final Comparator<AbstractSiteToolSession> LRU = new Comparator<AbstractSiteToolSession>() {
+		public int compare(AbstractSiteToolSession s1, AbstractSiteToolSession s2) {
+			long t1 = s1.getLastAccessTime();
+			long t2 = s2.getLastAccessTime();
+			return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+		}
+	};
+
+	private final SessionManager _sessionMgr;
+	private final Executor _executor;
+	private volatile long _maxAge;
+	private volatile long _maxResultBytes;
+	private Ticker _ticker;
+	private boolean _checkScheduled;
+	private boolean _killed;
+
+	SessionRetention(SessionManager sessionManager, Executor executor) {
+		_sessionMgr = sessionManager;
+		_executor = executor;
+		_maxAge = DEFAULT_MAX_AGE;
+		_maxResultBytes = DEFAULT_MAX_RESULT_BYTES;
+	}
+
+	/** @param maxAge in ms, 0 keeps finished sessions regardless of age */
+	public void setMaxAge(long maxAge) {
+		_maxAge = maxAge;
+		scheduleCheck();
+	}
+
+	/** @param maxResultBytes 0 for no limit */
+	public void setMaxResultBytes(long maxResultBytes) {
+		_maxResultBytes = maxResultBytes;
+		scheduleCheck();
+	}
+
+	public long getMaxAge() {
+		return _maxAge;
+	}
+
+	public long getMaxResultBytes() {
+		return _maxResultBytes;
+	}
+
+	/** start the periodic age check */
+	void start(Ticker ticker) {
+		synchronized (this) {
+			_ticker = ticker;
+		}
+		queuePeriodicCheck();
+	}
+
+	void kill() {
+		synchronized (this) {
+			_killed = true;
+		}
+	}
+
+	public void onStatusChanged(AbstractSiteToolSession session, SessionStatus oldStatus, SessionStatus newStatus) {
+		if ((newStatus == SessionStatus.DONE) || (newStatus == SessionStatus.ERROR))
+			scheduleCheck();
+	}
+
+	private void queuePeriodicCheck() {
+		Ticker ticker;
+		synchronized (this) {
+			if (_killed || (_ticker == null))
+				return;
+			ticker = _ticker;
+		}
+		ticker.queueTimedJob(new Runnable() {
+			public void run() {
+				scheduleCheck();
+				queuePeriodicCheck();
+			}
+		}, CHECK_INTERVAL);
+	}
+
+	/** run a check on the executor, unless one is pending anyway */
+	public void scheduleCheck() {
+		synchronized (this) {
+			if (_killed || _checkScheduled)
+				return;
+			_checkScheduled = true;
+		}
+		_executor.execute(new Runnable() {
+			public void run() {
+				synchronized (SessionRetention.this) {
+					_checkScheduled = false;
+				}
+				check();
+			}
+		});
+	}
+
+	private void check() {
+		long now = System.currentTimeMillis();
+		long maxAge = _maxAge;
+		long maxResultBytes = _maxResultBytes;
+		List<AbstractSiteToolSession> finished = new ArrayList<AbstractSiteToolSession>();
+		for (String id : _sessionMgr.getSessionNames()) {
+			AbstractSiteToolSession session = _sessionMgr.getSession(id);
+			if ((session != null) && isFinished(session))
+				finished.add(session);
+		}
+
+		long totalBytes = 0;
+		List<AbstractSiteToolSession> kept = new ArrayList<AbstractSiteToolSession>();
+		for (AbstractSiteToolSession session : finished) {
+			if ((maxAge > 0) && ((now - session.getFinishedTime()) > maxAge)) {
+				evict(session, "expired");
+			} else {
+				kept.add(session);
+				totalBytes += session.getResultSize();
+			}
+		}
+
+		if ((maxResultBytes <= 0) || (totalBytes <= maxResultBytes))
+			return;
+		Collections.sort(kept, LRU);
+		for (AbstractSiteToolSession session : kept) {
+			if (totalBytes <= maxResultBytes)
+				break;
+			long size = session.getResultSize();
+			if (size == 0)
+				continue;
+			if (evict(session, "result budget exceeded"))
+				totalBytes -= size;
+		}
+	}
+
+	private static boolean isFinished(AbstractSiteToolSession session) {
+		SessionStatus status = session.getStatus();
+		return (status == SessionStatus.DONE) || (status == SessionStatus.ERROR);
+	}
+
+	private boolean evict(AbstractSiteToolSession session, String reason) {
+		// it may have been restarted meanwhile
+		if (!isFinished(session))
+			return false;
+		if (!_sessionMgr.evictSession(session))
+			return false;
+		Logger.normal(this, "Evicted session " + session.getSessionID() + ": " + reason);
+		return true;
+	}
+}
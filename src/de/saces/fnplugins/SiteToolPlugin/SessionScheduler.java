@@ -0,0 +1,180 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.SiteDownloadSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.SiteEditSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession;
+
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Admission control for sessions. Started sessions are queued per session
+ * type and stay WAITING until both a slot of their type and a global slot
+ * are free. Queues with a better priority (lower number, like the node's
+ * priority classes) are served first, FIFO within a queue.
+ */
+public class SessionScheduler {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(SessionScheduler.class);
+	}
+
+	public static final int PRIORITY_HIGH = 1;
+	public static final int PRIORITY_NORMAL = 2;
+	public static final int PRIORITY_LOW = 3;
+
+	public static final int DEFAULT_MAX_RUNNING = 4;
+
+	private static class Entry {
+		final AbstractSiteToolSession session;
+		final PluginReplySender replysender;
+
+		Entry(AbstractSiteToolSession session, PluginReplySender replysender) {
+			this.session = session;
+			this.replysender = replysender;
+		}
+	}
+
+	private static class TypeQueue {
+		final String name;
+		int priority;
+		int maxRunning;
+		int running;
+		final LinkedList<Entry> queue = new LinkedList<Entry>();
+
+		TypeQueue(String name, int priority, int maxRunning) {
+			this.name = name;
+			this.priority = priority;
+			this.maxRunning = maxRunning;
+		}
+	}
+
+	private final Executor _executor;
+	private final LinkedHashMap<Class<?>, TypeQueue> _queues;
+	// session types without own limits
+	private final TypeQueue _defaultQueue;
+	private int _maxRunning;
+	private int _running;
+
+	SessionScheduler(Executor executor) {
+		_executor = executor;
+		_queues = new LinkedHashMap<Class<?>, TypeQueue>();
+		_defaultQueue = new TypeQueue("Other", PRIORITY_NORMAL, 1);
+		_maxRunning = DEFAULT_MAX_RUNNING;
+		// interactive site inserts first, healing is background work
+		setLimits(SiteEditSession.class, PRIORITY_HIGH, 2);
+		setLimits(SiteDownloadSession.class, PRIORITY_NORMAL, 2);
+		setLimits(USKHealSession.class, PRIORITY_LOW, 1);
+	}
+
+	public synchronized void setLimits(Class<? extends AbstractSiteToolSession> type, int priority, int maxRunning) {
+		if (maxRunning < 1)
+			throw new IllegalArgumentException("maxRunning must be positive");
+		TypeQueue tq = _queues.get(type);
+		if (tq == null) {
+			_queues.put(type, new TypeQueue(type.getSimpleName(), priority, maxRunning));
+		} else {
+			tq.priority = priority;
+			tq.maxRunning = maxRunning;
+		}
+		dispatch();
+	}
+
+	public synchronized void setMaxRunning(int maxRunning) {
+		if (maxRunning < 1)
+			throw new IllegalArgumentException("maxRunning must be positive");
+		_maxRunning = maxRunning;
+		dispatch();
+	}
+
+	/** queue a WAITING session, it is run as soon as there is a free slot */
+	public synchronized void submit(AbstractSiteToolSession session, PluginReplySender replysender) {
+		getQueue(session).queue.add(new Entry(session, replysender));
+		dispatch();
+	}
+
+	/** @return true if the session was still queued */
+	public synchronized boolean remove(AbstractSiteToolSession session) {
+		Iterator<Entry> it = getQueue(session).queue.iterator();
+		while (it.hasNext()) {
+			if (it.next().session == session) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return 1 based position in the queue of its type, 0 if not queued */
+	public synchronized int getQueuePosition(AbstractSiteToolSession session) {
+		int pos = 1;
+		for (Entry entry : getQueue(session).queue) {
+			if (entry.session == session)
+				return pos;
+			pos++;
+		}
+		return 0;
+	}
+
+	public synchronized int getRunning() {
+		return _running;
+	}
+
+	private TypeQueue getQueue(AbstractSiteToolSession session) {
+		TypeQueue tq = _queues.get(session.getClass());
+		return (tq == null) ? _defaultQueue : tq;
+	}
+
+	private void dispatch() {
+		while (_running < _maxRunning) {
+			TypeQueue best = null;
+			for (TypeQueue tq : _queues.values()) {
+				best = better(best, tq);
+			}
+			best = better(best, _defaultQueue);
+			if (best == null)
+				return;
+			Entry entry = best.queue.removeFirst();
+			best.running++;
+			_running++;
+			if (logMINOR)
+				Logger.minor(this, "Starting session " + entry.session.getSessionID() + " (" + best.name + ")");
+			run(best, entry);
+		}
+	}
+
+	private static TypeQueue better(TypeQueue best, TypeQueue candidate) {
+		if (candidate.queue.isEmpty() || (candidate.running >= candidate.maxRunning))
+			return best;
+		if ((best == null) || (candidate.priority < best.priority))
+			return candidate;
+		return best;
+	}
+
+	private void run(final TypeQueue tq, final Entry entry) {
+		_executor.execute(new Runnable() {
+			public void run() {
+				try {
+					entry.session.runSession(entry.replysender);
+				} finally {
+					finished(tq);
+				}
+			}
+		});
+	}
+
+	private synchronized void finished(TypeQueue tq) {
+		tq.running--;
+		_running--;
+		dispatch();
+	}
+}
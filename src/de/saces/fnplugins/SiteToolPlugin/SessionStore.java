@@ -0,0 +1,260 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession.SessionStatus;
+import de.saces.fnplugins.SiteToolPlugin.sessions.ISessionCheckpointListener;
+import de.saces.fnplugins.SiteToolPlugin.sessions.ISessionStatusListener;
+import de.saces.fnplugins.SiteToolPlugin.sessions.SiteDownloadSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.DownloadJournal;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+import freenet.support.plugins.helpers1.PluginContext;
+
+/**
+ * Keeps sessions on disk so they survive a node restart. Each session has
+ * its own small SimpleFieldSet file with its descriptor, last status and
+ * checkpoint. A file is rewritten when the status of its session changes
+ * or the session reports a checkpoint; writes are coalesced and done on
+ * the executor.
+ *
+ * Sessions without a descriptor are not stored.
+ */
+public class SessionStore implements ISessionStatusListener, ISessionCheckpointListener {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(SessionStore.class);
+	}
+
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".session";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** a restored session and whether it was started before the restart */
+	public static class RestoredSession {
+		public final AbstractSiteToolSession session;
+		public final boolean resume;
+
+		RestoredSession(AbstractSiteToolSession session, boolean resume) {
+			this.session = session;
+			this.resume = resume;
+		}
+	}
+
+	private final File _dir;
+	private final Executor _executor;
+	private final HashMap<AbstractSiteToolSession, SimpleFieldSet> _descriptors;
+	private final LinkedHashSet<AbstractSiteToolSession> _dirty;
+	// file writes and deletes, a removed session must not be written again
+	private final Object _fileLock = new Object();
+	private boolean _writerScheduled;
+	private boolean _closed;
+
+	public SessionStore(File dir, Executor executor) throws IOException {
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Can't create session directory " + dir);
+		_dir = dir;
+		_executor = executor;
+		_descriptors = new HashMap<AbstractSiteToolSession, SimpleFieldSet>();
+		_dirty = new LinkedHashSet<AbstractSiteToolSession>();
+	}
+
+	/**
+	 * Recreate the stored sessions. They are IDLE with their checkpoint
+	 * restored and not yet tracked, see {@link #add(AbstractSiteToolSession)}.
+	 * Files that can't be read are logged and left alone.
+	 */
+	public List<RestoredSession> load(PluginContext pluginContext) {
+		List<RestoredSession> result = new ArrayList<RestoredSession>();
+		File[] files = _dir.listFiles();
+		if (files == null)
+			return result;
+		for (File f : files) {
+			if (!f.getName().endsWith(SUFFIX))
+				continue;
+			try {
+				SimpleFieldSet sfs = read(f);
+				String sessionID = sfs.get("SessionID");
+				SimpleFieldSet descriptor = sfs.subset("Descriptor");
+				if ((sessionID == null) || (descriptor == null))
+					throw new IOException("Incomplete session file");
+				AbstractSiteToolSession session = create(sessionID, descriptor, pluginContext);
+				SimpleFieldSet checkpoint = sfs.subset("Checkpoint");
+				if (checkpoint != null)
+					session.restoreCheckpoint(checkpoint);
+				SessionStatus status = SessionStatus.valueOf(sfs.get("Status"));
+				// a session being cancelled stays stopped
+				boolean resume = (status == SessionStatus.WAITING) || (status == SessionStatus.RUNNING);
+				result.add(new RestoredSession(session, resume));
+				if (logMINOR)
+					Logger.minor(this, "Restored session " + sessionID + " (was " + status + ')');
+			} catch (Exception e) {
+				Logger.error(this, "Can't restore session from " + f, e);
+			}
+		}
+		return result;
+	}
+
+	private static AbstractSiteToolSession create(String sessionID, SimpleFieldSet descriptor, PluginContext pluginContext) throws Exception {
+		String type = descriptor.get("Type");
+		if (SiteDownloadSession.TYPE.equals(type))
+			return SiteDownloadSession.restore(sessionID, descriptor, pluginContext);
+		if (USKHealSession.TYPE.equals(type))
+			return USKHealSession.restore(sessionID, descriptor, pluginContext);
+		throw new IOException("Unknown session type: " + type);
+	}
+
+	/** start tracking a session, does nothing if it can't be persisted */
+	public void add(AbstractSiteToolSession session) {
+		SimpleFieldSet descriptor = session.getDescriptor();
+		if (descriptor == null)
+			return;
+		synchronized (this) {
+			if (_closed)
+				return;
+			_descriptors.put(session, descriptor);
+		}
+		session.addStatusListener(this);
+		session.addCheckpointListener(this);
+		markDirty(session);
+	}
+
+	/** stop tracking a session and delete its file */
+	public void remove(AbstractSiteToolSession session) {
+		session.removeStatusListener(this);
+		session.removeCheckpointListener(this);
+		synchronized (this) {
+			if (_descriptors.remove(session) == null)
+				return;
+			_dirty.remove(session);
+		}
+		synchronized (_fileLock) {
+			File f = getFile(session.getSessionID());
+			if (f.exists() && !f.delete())
+				Logger.error(this, "Can't delete session file " + f);
+		}
+	}
+
+	/**
+	 * Stop writing, the files keep the last stored state. Used on shutdown,
+	 * running sessions are resumed on the next start.
+	 */
+	public void close() {
+		List<AbstractSiteToolSession> sessions;
+		synchronized (this) {
+			_closed = true;
+			sessions = new ArrayList<AbstractSiteToolSession>(_descriptors.keySet());
+			_descriptors.clear();
+			_dirty.clear();
+		}
+		for (AbstractSiteToolSession session : sessions) {
+			session.removeStatusListener(this);
+			session.removeCheckpointListener(this);
+		}
+	}
+
+	public void onStatusChanged(AbstractSiteToolSession session, SessionStatus oldStatus, SessionStatus newStatus) {
+		markDirty(session);
+	}
+
+	public void onCheckpoint(AbstractSiteToolSession session) {
+		markDirty(session);
+	}
+
+	private void markDirty(AbstractSiteToolSession session) {
+		synchronized (this) {
+			if (_closed || !_descriptors.containsKey(session))
+				return;
+			_dirty.add(session);
+			if (_writerScheduled)
+				return;
+			_writerScheduled = true;
+		}
+		_executor.execute(new Runnable() {
+			public void run() {
+				writeDirty();
+			}
+		});
+	}
+
+	private void writeDirty() {
+		while (true) {
+			AbstractSiteToolSession session;
+			SimpleFieldSet descriptor;
+			synchronized (this) {
+				if (_dirty.isEmpty() || _closed) {
+					_writerScheduled = false;
+					return;
+				}
+				session = _dirty.iterator().next();
+				_dirty.remove(session);
+				descriptor = _descriptors.get(session);
+			}
+			SimpleFieldSet sfs = new SimpleFieldSet(false);
+			sfs.put("Version", VERSION);
+			sfs.putSingle("SessionID", session.getSessionID());
+			sfs.putSingle("Status", session.getStatus().name());
+			sfs.put("Descriptor", descriptor);
+			SimpleFieldSet checkpoint = session.getCheckpoint();
+			if (checkpoint != null)
+				sfs.put("Checkpoint", checkpoint);
+			synchronized (_fileLock) {
+				synchronized (this) {
+					if (!_descriptors.containsKey(session))
+						continue;
+				}
+				write(getFile(session.getSessionID()), sfs);
+			}
+		}
+	}
+
+	private void write(File f, SimpleFieldSet sfs) {
+		File tempFile = new File(f.getPath() + TEMP_SUFFIX);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tempFile);
+			sfs.writeTo(fos);
+			fos.close();
+			fos = null;
+			FileUtil.renameTo(tempFile, f);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot store session: " + e, e);
+		} finally {
+			Closer.close(fos);
+		}
+	}
+
+	private static SimpleFieldSet read(File f) throws IOException {
+		FileInputStream fis = null;
+		BufferedInputStream bis = null;
+		try {
+			fis = new FileInputStream(f);
+			bis = new BufferedInputStream(fis);
+			return SimpleFieldSet.readFrom(bis, false, false);
+		} finally {
+			Closer.close(bis);
+			Closer.close(fis);
+		}
+	}
+
+	private File getFile(String sessionID) {
+		return new File(_dir, DownloadJournal.hash(sessionID) + SUFFIX);
+	}
+}
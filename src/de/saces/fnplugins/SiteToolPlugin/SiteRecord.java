@@ -0,0 +1,179 @@
+package de.saces.fnplugins.SiteToolPlugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.DownloadJournal;
+
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * What was inserted for each file of a site: size, content hash, mime type
+ * and CHK. Written after a successful incremental insert; the next one
+ * compares against it and only inserts files that changed.
+ *
+ * One file per site in {@link Constants#SITE_RECORD_DIR}, named by the
+ * hash of the insert uri (for USKs without the edition), so sites are
+ * recognized across editions. Each line: size hash chk urlencoded-mime
+ * urlencoded-name. The file is replaced as a whole.
+ */
+public class SiteRecord {
+
+	private static final String SUFFIX = ".record";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String NO_MIME = "-";
+
+	public static class Entry {
+		public final long size;
+		public final String hash;
+		public final String mimeType;
+		public final FreenetURI chk;
+
+		public Entry(long size, String hash, String mimeType, FreenetURI chk) {
+			this.size = size;
+			this.hash = hash;
+			this.mimeType = mimeType;
+			this.chk = chk;
+		}
+
+		/** true if it has the same content and mime type */
+		public boolean matches(long size, String hash, String mimeType) {
+			if ((this.size != size) || !this.hash.equals(hash))
+				return false;
+			return (this.mimeType == null) ? (mimeType == null) : this.mimeType.equals(mimeType);
+		}
+	}
+
+	private final File _file;
+	private final HashMap<String, Entry> _entries;
+
+	private SiteRecord(File file) {
+		_file = file;
+		_entries = new HashMap<String, Entry>();
+	}
+
+	/** the record of the site, empty if it was never inserted incrementally */
+	public static SiteRecord load(File dir, FreenetURI insertURI) throws IOException {
+		SiteRecord record = new SiteRecord(new File(dir, DownloadJournal.hash(getSiteKey(insertURI)) + SUFFIX));
+		record.read();
+		return record;
+	}
+
+	private static String getSiteKey(FreenetURI insertURI) {
+		FreenetURI uri = insertURI;
+		if (uri.isSSKForUSK())
+			uri = uri.uskForSSK();
+		if (uri.isUSK())
+			uri = uri.setSuggestedEdition(0);
+		return uri.setMetaString(null).toString(false, false);
+	}
+
+	private void read() throws IOException {
+		if (!_file.exists())
+			return;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split(" ", 5);
+				if (parts.length != 5) {
+					Logger.normal(this, "Ignoring broken line in " + _file);
+					continue;
+				}
+				try {
+					String mime = NO_MIME.equals(parts[3]) ? null : URLDecoder.decode(parts[3], "UTF-8");
+					Entry entry = new Entry(Long.parseLong(parts[0]), parts[1], mime, new FreenetURI(parts[2]));
+					_entries.put(URLDecoder.decode(parts[4], "UTF-8"), entry);
+				} catch (NumberFormatException e) {
+					Logger.normal(this, "Ignoring broken line in " + _file);
+				} catch (MalformedURLException e) {
+					Logger.normal(this, "Ignoring broken line in " + _file);
+				}
+			}
+		} finally {
+			Closer.close(br);
+		}
+	}
+
+	/** @param path full path of the file, like 'dir/file.html' */
+	public Entry get(String path) {
+		return _entries.get(path);
+	}
+
+	public void put(String path, Entry entry) {
+		_entries.put(path, entry);
+	}
+
+	public int size() {
+		return _entries.size();
+	}
+
+	/** replace the entries, files not in the new set are forgotten */
+	public void setEntries(Map<String, Entry> entries) {
+		_entries.clear();
+		_entries.putAll(entries);
+	}
+
+	public void store() throws IOException {
+		File dir = _file.getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create site record directory " + dir);
+		File tempFile = new File(_file.getPath() + TEMP_SUFFIX);
+		Writer w = null;
+		try {
+			w = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+				Entry entry = e.getValue();
+				sb.setLength(0);
+				sb.append(entry.size).append(' ');
+				sb.append(entry.hash).append(' ');
+				sb.append(entry.chk.toString(false, false)).append(' ');
+				sb.append((entry.mimeType == null) ? NO_MIME : URLEncoder.encode(entry.mimeType, "UTF-8")).append(' ');
+				sb.append(URLEncoder.encode(e.getKey(), "UTF-8")).append('\n');
+				w.write(sb.toString());
+			}
+			w.close();
+			w = null;
+		} finally {
+			Closer.close(w);
+		}
+		if (!FileUtil.renameTo(tempFile, _file))
+			throw new IOException("Can't replace " + _file);
+	}
+
+	/** hex encoded SHA-256 of the data */
+	public static String hash(Bucket data) throws IOException {
+		MessageDigest md = DownloadJournal.getDigest();
+		InputStream is = null;
+		try {
+			is = data.getInputStream();
+			byte[] buf = new byte[32768];
+			int read;
+			while ((read = is.read(buf)) > 0)
+				md.update(buf, 0, read);
+		} finally {
+			Closer.close(is);
+		}
+		return HexUtil.bytesToHex(md.digest());
+	}
+}
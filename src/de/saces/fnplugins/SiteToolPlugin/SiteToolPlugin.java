@@ -50,6 +50,7 @@ public class SiteToolPlugin implements FredPlugin, FredPluginFCP,
 	private WebInterface webInterface;
 
 	private SessionManager sessionManager;
+	private ChkCache chkCache;
 	private SiteManager siteManager;
 	private FCPHandler fcpHandler;
 
@@ -68,8 +69,18 @@ public class SiteToolPlugin implements FredPlugin, FredPluginFCP,
 		}
 
 		sessionManager = new SessionManager(pluginContext.clientCore.getExecutor());
+		try {
+			SessionStore sessionStore = new SessionStore(new File(Constants.SESSION_STORE_DIR), pluginContext.clientCore.getExecutor());
+			sessionManager.restoreSessions(sessionStore, pluginContext);
+		} catch (IOException e) {
+			// sessions still work, they are just not kept over a restart
+			Logger.error(this, "Error while opening session store.", e);
+		}
+		sessionManager.getRetention().start(pluginRespirator.getNode().getTicker());
+
+		chkCache = new ChkCache(new File(Constants.CHK_CACHE_FILE), ChkCache.DEFAULT_MAX_ENTRIES);
 
-		fcpHandler = new FCPHandler(sessionManager, pluginContext);
+		fcpHandler = new FCPHandler(sessionManager, pluginContext, chkCache);
 
 		webInterface = new WebInterface(pluginContext);
 
@@ -117,6 +128,8 @@ public class SiteToolPlugin implements FredPlugin, FredPluginFCP,
 		fcpHandler = null;
 		sessionManager.kill();
 		sessionManager = null;
+		chkCache.close();
+		chkCache = null;
 	}
 
 	public String getVersion() {
@@ -1,9 +1,7 @@
 package de.saces.fnplugins.SiteToolPlugin;
 
 import java.util.HashMap;
-import java.util.Set;
 
-import freenet.client.async.ManifestElement;
 import freenet.keys.FreenetURI;
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
@@ -24,18 +22,18 @@ public class SiteToolSession {
 	//private HashMap<String, Object> containers;
 	private PluginReplySender replySender;
 	private String id;
-	private HashMap<String, Object> data;
+	private ManifestTree data;
 
 	public SiteToolSession(PluginReplySender replysender, String identifier) {
 		replySender = replysender;
 		id = identifier;
-		data = new HashMap<String, Object>();
+		data = new ManifestTree();
 	}
 
 	public SiteToolSession(PluginReplySender replysender, String identifier, FreenetURI oldUri, HashMap<String, Object> metadata) {
 		replySender = replysender;
 		id = identifier;
-		data = metadata;
+		data = ManifestTree.fromHashMap(metadata);
 	}
 
 	public boolean endSession(boolean kill) {
@@ -50,47 +48,12 @@ public class SiteToolSession {
 		FCPHandler.sendNOP(replysender, identifier);
 	}
 
-	@SuppressWarnings("unchecked")
-	private HashMap<String, Object> findDir(HashMap<String, Object> parent, String name, boolean create) {
-		String[] s = name.split("/", 2); 
-		Object o = parent.get(s[0]);
-		if (o == null) { // not found
-			if (create) {
-				o = new HashMap<String, Object>();
-				parent.put(s[0], o);
-			} else return null;
-		}
-		if (o instanceof HashMap) {
-			if (s.length == 2) {
-				return findDir((HashMap<String, Object>)o, s[1], create);
-			}
-			return (HashMap<String, Object>)o;
-		}
-		// not a dir FIXME
-		return null;
-	}
-
 	public void addItem(PluginReplySender replysender, String name, String mimeOverride, Bucket item, boolean overwrite, boolean createpath) throws PluginNotFoundException {
-		int i = name.lastIndexOf("/");
-		String dirName;
-		String itemName;
-		HashMap<String, Object> parent;
-		if (i > -1) {
-			dirName = name.substring(0, i);
-			itemName = name.substring(i+1);
-			parent = findDir(data, dirName, createpath);
-		} else {
-			dirName = null;
-			itemName = name;
-			parent = data;
-		}
-
-		if ((!overwrite) && (parent.containsKey(name))) {
+		String error = data.put(name, mimeOverride, item, overwrite, createpath);
+		if (error != null) {
 			//FCPHandler.sendError(replysender, 200, name, "Duplicate item");
 			return;
 		}
-
-		parent.put(itemName, new ManifestElement(itemName, item, mimeOverride, item.size()));
 		FCPHandler.sendSuccess(replysender, id, "Item added: "+ name);
 	}
 
@@ -143,33 +106,29 @@ public class SiteToolSession {
 //	}
 
 	public void listItems(PluginReplySender replysender2, String identifer) throws PluginNotFoundException {
-		listItems(replysender2, identifer, "/", data);
-		FCPHandler.sendSuccess(replysender2, identifer, "List End");
+		listItems(replysender2, identifer, null, null, ManifestListing.MAX_RESULTS);
 	}
 
-	@SuppressWarnings("unchecked")
-	private void listItems(PluginReplySender replysender2, String identifer, String prefix, HashMap<String, Object> md) throws PluginNotFoundException {
-		Set<String> set = md.keySet();
-		for(String name:set) {
-			Object o = md.get(name);
-			if (o instanceof HashMap) {
-				listItems(replysender2, identifer, prefix+name+'/', (HashMap<String, Object>)o);	
-				continue;
-			}
-			if (o instanceof ManifestElement) {
-				ManifestElement me = (ManifestElement)o;
-				SimpleFieldSet sfs = new SimpleFieldSet(true);
-				sfs.putSingle("Status", "ManifestItem");
-				sfs.putSingle("Identifer", identifer);
-				sfs.putSingle("Name", me.getName());
-				sfs.putSingle("Path", prefix);
-				replysender2.send(sfs);
-				continue;
-			}
-			// FIXME
-			System.out.println(o);
-			throw new Error("Huhu");
-		}	
+	/** one page of items, see {@link ManifestListing} */
+	public void listItems(PluginReplySender replysender2, String identifer, String after, String prefix, int maxResults) throws PluginNotFoundException {
+		ManifestListing listing = new ManifestListing(after, prefix, maxResults);
+		listing.list(data);
+		for (ManifestListing.Item item : listing.getItems()) {
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putSingle("Status", "ManifestItem");
+			sfs.putSingle("Identifer", identifer);
+			sfs.putSingle("Name", item.element.getName());
+			sfs.putSingle("Path", item.getDirectory());
+			replysender2.send(sfs);
+		}
+		if (listing.hasMore()) {
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putSingle("Status", "ManifestListingCursor");
+			sfs.putSingle("Identifer", identifer);
+			sfs.putSingle("Cursor", listing.getCursor());
+			replysender2.send(sfs);
+		}
+		FCPHandler.sendSuccess(replysender2, identifer, "List End");
 	}
 
 	public void killSession() {
@@ -2,26 +2,70 @@ package de.saces.fnplugins.SiteToolPlugin;
 
 import com.db4o.ObjectContainer;
 
+import freenet.client.InsertException;
 import freenet.client.PutWaiter;
 import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
+import freenet.client.events.SplitfileProgressEvent;
 import freenet.keys.FreenetURI;
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
 import freenet.support.Logger;
+import freenet.support.Ticker;
 
+/**
+ * Forwards the progress of an insert to a FCP client. Client events come
+ * in bursts of thousands per second, so they are coalesced: at most one
+ * Progress message per interval is sent, with the latest description.
+ * A pending update is sent when the interval is over and before any
+ * milestone (fetchable, URI generated) and the end of the insert.
+ */
 public class VerboseWaiter extends PutWaiter implements ClientEventListener {
-	
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(VerboseWaiter.class);
+	}
+
+	public static final long DEFAULT_PROGRESS_INTERVAL = 1000;
+
 	private final PluginReplySender _replysender;
 	private final String _identifier;
+	private final Ticker _ticker;
+	private final long _interval;
 	private BaseClientPutter _putter;
 
+	// coalesced progress, guarded by this
+	private String _pendingProgress;
+	private int _pendingEvents;
+	private long _lastSent;
+	private boolean _flushScheduled;
+	private boolean _gone;
+	// latest splitfile progress
+	private int _blocksTotal = -1;
+	private int _blocksDone;
+	private int _blocksFailed;
+
 	public VerboseWaiter(PluginReplySender replysender, String identifier) {
+		this(replysender, identifier, null, 0);
+	}
+
+	/**
+	 * @param ticker sends the last update of a burst once the interval is
+	 * over, without one it waits for the next event or the end
+	 * @param interval minimum ms between two progress messages, 0 sends
+	 * every event
+	 */
+	public VerboseWaiter(PluginReplySender replysender, String identifier, Ticker ticker, long interval) {
 		super();
 		_replysender = replysender;
 		_identifier = identifier;
+		_ticker = ticker;
+		_interval = interval;
 	}
 
 	public void setPutter(BaseClientPutter putter) {
@@ -30,27 +74,34 @@ public class VerboseWaiter extends PutWaiter implements ClientEventListener {
 
 	@Override
 	public void onFetchable(BaseClientPutter state, ObjectContainer container) {
-		try {
-			FCPHandler.sendProgress(_replysender,  _identifier, "Put fetchable");
-		} catch (PluginNotFoundException e) {
-			// TODO Auto-generated catch block
-			_putter.cancel(container, null);
-		}
-		Logger.error(this, "Put fetchable");
+		flushProgress(container, null);
+		send(container, null, "Put fetchable");
+		if (logMINOR)
+			Logger.minor(this, "Put fetchable");
 		super.onFetchable(state, container);
 	}
 
 	@Override
 	public synchronized void onGeneratedURI(FreenetURI uri, BaseClientPutter state, ObjectContainer container) {
 		Logger.debug(this, "Got UriGenerated: "+uri.toString(false, false));
-		try {
-			FCPHandler.sendProgress(_replysender,  _identifier, "Uri generated: "+uri.toString(false, false));
-		} catch (PluginNotFoundException e) {
-			_putter.cancel(container, null);
-		}
+		flushProgress(container, null);
+		send(container, null, "Uri generated: "+uri.toString(false, false));
 		super.onGeneratedURI(uri, state, container);
 	}
 
+	@Override
+	public synchronized void onSuccess(BaseClientPutter state, ObjectContainer container) {
+		// the final state is always sent
+		flushProgress(container, null);
+		super.onSuccess(state, container);
+	}
+
+	@Override
+	public synchronized void onFailure(InsertException e, BaseClientPutter state, ObjectContainer container) {
+		flushProgress(container, null);
+		super.onFailure(e, state, container);
+	}
+
 	// segment start/finish, ignore, we don't persist
 //	@Override
 //	public void onMajorProgress(ObjectContainer container) {
@@ -63,13 +114,84 @@ public class VerboseWaiter extends PutWaiter implements ClientEventListener {
 	}
 
 	public void receive(ClientEvent ce, ObjectContainer maybeContainer, ClientContext context) {
-		Logger.error(this, "Progress: "+ce.getDescription());
+		String description = ce.getDescription();
+		if (logMINOR)
+			Logger.minor(this, "Progress: "+description);
+		long delay;
+		synchronized (this) {
+			if (ce instanceof SplitfileProgressEvent) {
+				SplitfileProgressEvent spe = (SplitfileProgressEvent) ce;
+				_blocksTotal = spe.totalBlocks;
+				_blocksDone = spe.succeedBlocks;
+				_blocksFailed = spe.failedBlocks + spe.fatallyFailedBlocks;
+			}
+			_pendingProgress = description;
+			_pendingEvents++;
+			delay = (_lastSent + _interval) - System.currentTimeMillis();
+			if (delay > 0) {
+				// within the interval, send it later
+				if (_flushScheduled || (_ticker == null))
+					return;
+				_flushScheduled = true;
+			}
+		}
+		if (delay > 0) {
+			_ticker.queueTimedJob(new Runnable() {
+				public void run() {
+					synchronized (VerboseWaiter.this) {
+						_flushScheduled = false;
+					}
+					flushProgress(null, null);
+				}
+			}, delay);
+			return;
+		}
+		flushProgress(maybeContainer, context);
+	}
+
+	/** blocks of the insert, -1 before the first progress event */
+	public synchronized int getBlocksTotal() {
+		return _blocksTotal;
+	}
+
+	public synchronized int getBlocksDone() {
+		return _blocksDone;
+	}
+
+	public synchronized int getBlocksFailed() {
+		return _blocksFailed;
+	}
+
+	/** send the coalesced progress, if there is any */
+	private void flushProgress(ObjectContainer container, ClientContext context) {
+		String description;
+		synchronized (this) {
+			description = _pendingProgress;
+			if (description == null)
+				return;
+			if (logDEBUG && (_pendingEvents > 1))
+				Logger.debug(this, "Coalesced "+_pendingEvents+" progress events");
+			_pendingProgress = null;
+			_pendingEvents = 0;
+			_lastSent = System.currentTimeMillis();
+		}
+		send(container, context, description);
+	}
+
+	private void send(ObjectContainer container, ClientContext context, String description) {
+		synchronized (this) {
+			if (_gone)
+				return;
+		}
 		try {
-			FCPHandler.sendProgress(_replysender,  _identifier, ce.getDescription());
+			FCPHandler.sendProgress(_replysender,  _identifier, description);
 		} catch (PluginNotFoundException e) {
-			Logger.error(this, "Could not send Progress", e);
-			_putter.cancel(maybeContainer, context);
+			Logger.normal(this, "Could not send Progress, client gone", e);
+			synchronized (this) {
+				_gone = true;
+			}
+			if (_putter != null)
+				_putter.cancel(container, context);
 		}
 	}
 }
-
@@ -1,6 +1,8 @@
 package de.saces.fnplugins.SiteToolPlugin.sessions;
 
 import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
@@ -23,15 +25,20 @@ public abstract class AbstractSiteToolSession {
 		Logger.registerClass(AbstractSiteToolSession.class);
 	}
 
-	private final Object lock = new Object();
-
 	protected final String sessionID;
-	private SessionStatus sessionStatus;
-	private Throwable lastError;
+	private final AtomicReference<SessionStatus> sessionStatus;
+	private final CopyOnWriteArrayList<ISessionStatusListener> statusListeners;
+	private final CopyOnWriteArrayList<ISessionCheckpointListener> checkpointListeners;
+	private volatile Throwable lastError;
+	private volatile long startTime;
+	private volatile long finishedTime;
+	private volatile long lastAccessTime;
 
 	protected AbstractSiteToolSession(String identifier) {
 		sessionID = identifier;
-		sessionStatus = SessionStatus.IDLE;
+		sessionStatus = new AtomicReference<SessionStatus>(SessionStatus.IDLE);
+		statusListeners = new CopyOnWriteArrayList<ISessionStatusListener>();
+		checkpointListeners = new CopyOnWriteArrayList<ISessionCheckpointListener>();
 	}
 
 	public abstract boolean canRetry();
@@ -42,54 +49,207 @@ public abstract class AbstractSiteToolSession {
 
 	public abstract void getExtraStatusPanel(HTMLNode node);
 
+	/** free everything held in memory or temp space, the session is gone */
 	public abstract void destroySession();
 
-	public abstract void handleFCP(PluginReplySender replysender, String command, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException;
+	/**
+	 * Delete the data kept on disk to resume the session after a restart.
+	 * Called after {@link #destroySession()} if the session is removed for
+	 * good, not on shutdown.
+	 */
+	public void purge() {
+	}
+
+	/** @return bytes held for the result, counted against the retention budget */
+	public long getResultSize() {
+		return 0;
+	}
+
+	/** a new snapshot of the progress, filled by {@link #fillProgress(SessionProgress)} */
+	public final SessionProgress getProgress() {
+		SessionStatus status = sessionStatus.get();
+		long start = startTime;
+		long elapsed = 0;
+		if (start > 0) {
+			boolean active = (status == SessionStatus.RUNNING) || (status == SessionStatus.STOPPING);
+			long end = active ? System.currentTimeMillis() : finishedTime;
+			elapsed = Math.max(0, end - start);
+		}
+		SessionProgress progress = new SessionProgress(status, elapsed);
+		fillProgress(progress);
+		return progress;
+	}
+
+	/** set what the session knows about its progress, called for each snapshot */
+	protected void fillProgress(SessionProgress progress) {
+	}
+
+	/** when the session became DONE or ERROR the last time, 0 if never */
+	public long getFinishedTime() {
+		return finishedTime;
+	}
+
+	/** last use of the finished session, eviction drops the least recently used first */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	public void touch() {
+		lastAccessTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Handle a session specific FCP command, see {@link SessionCommandMap}.
+	 * @return false if the command is unknown to this session type
+	 */
+	public boolean handleFCP(PluginReplySender replysender, String command, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+		return false;
+	}
 
 	public SessionStatus getStatus() {
-		return sessionStatus ;
+		return sessionStatus.get();
 	}
 
 	public String getSessionID() {
 		return sessionID;
 	}
 
+	/** short type name, like 'SiteDownload' for SiteDownloadSession */
+	public String getType() {
+		String name = getClass().getSimpleName();
+		if (name.endsWith("Session"))
+			return name.substring(0, name.length() - "Session".length());
+		return name;
+	}
+
+	public void addStatusListener(ISessionStatusListener listener) {
+		statusListeners.addIfAbsent(listener);
+	}
+
+	public void removeStatusListener(ISessionStatusListener listener) {
+		statusListeners.remove(listener);
+	}
+
+	/** drop all status listeners, the session is removed */
+	public void clearStatusListeners() {
+		statusListeners.clear();
+	}
+
+	public void addCheckpointListener(ISessionCheckpointListener listener) {
+		checkpointListeners.addIfAbsent(listener);
+	}
+
+	public void removeCheckpointListener(ISessionCheckpointListener listener) {
+		checkpointListeners.remove(listener);
+	}
+
+	/**
+	 * The fields needed to recreate this session after a restart, including
+	 * 'Type'. Sessions that can't be recreated return null (the default).
+	 */
+	public SimpleFieldSet getDescriptor() {
+		return null;
+	}
+
+	/** progress to resume from, null if there is none */
+	public SimpleFieldSet getCheckpoint() {
+		return null;
+	}
+
+	/** resume from a checkpoint, called before the session is started */
+	public void restoreCheckpoint(SimpleFieldSet checkpoint) {
+	}
+
+	/** tell the checkpoint listeners that {@link #getCheckpoint()} changed */
+	protected final void checkpoint() {
+		for (ISessionCheckpointListener listener : checkpointListeners) {
+			try {
+				listener.onCheckpoint(this);
+			} catch (Throwable t) {
+				Logger.error(this, "Checkpoint listener failed", t);
+			}
+		}
+	}
+
+	/**
+	 * Atomically change the status, only if it is the expected one.
+	 * @return false if the status was not 'from'
+	 */
+	protected final boolean transition(SessionStatus from, SessionStatus to) {
+		if (!sessionStatus.compareAndSet(from, to))
+			return false;
+		if ((to == SessionStatus.DONE) || (to == SessionStatus.ERROR)) {
+			finishedTime = System.currentTimeMillis();
+			lastAccessTime = finishedTime;
+		}
+		fireStatusChanged(from, to);
+		return true;
+	}
+
+	private void fireStatusChanged(SessionStatus from, SessionStatus to) {
+		for (ISessionStatusListener listener : statusListeners) {
+			try {
+				listener.onStatusChanged(this, from, to);
+			} catch (Throwable t) {
+				Logger.error(this, "Status listener failed", t);
+			}
+		}
+	}
+
+	/** ERROR is reachable from any status */
 	protected void setError(Throwable t) {
-		sessionStatus = SessionStatus.ERROR;
 		lastError = t;
+		while (true) {
+			SessionStatus old = sessionStatus.get();
+			if ((old == SessionStatus.ERROR) || transition(old, SessionStatus.ERROR))
+				return;
+		}
 	}
 
 	public Throwable getLastError() {
 		return lastError;
 	}
 
-	public final void startSession(final PluginReplySender replysender, Executor executor) {
-		if (!checkStart())
+	/**
+	 * IDLE (or DONE/ERROR if the session can retry) to WAITING, the session
+	 * must be run with {@link #runSession(PluginReplySender)} afterwards.
+	 */
+	public final void queueSession() {
+		if (!tryStart())
 			throw new IllegalStateException();
-		sessionStatus = SessionStatus.WAITING;
-		executor.execute(new Runnable() {
-			public void run() {
-				sessionStatus = SessionStatus.RUNNING;
-				try {
-					execute(replysender);
-					sessionStatus = SessionStatus.DONE;
-				} catch (Exception e) {
-					Logger.error(this, "debug", e);
-					setError(e);
-				}
-			}
-		});
+	}
+
+	/**
+	 * Run a WAITING session on the calling thread, returns when done.
+	 * Does nothing if the session was cancelled meanwhile.
+	 */
+	public final void runSession(PluginReplySender replysender) {
+		// cancelled while waiting
+		if (!transition(SessionStatus.WAITING, SessionStatus.RUNNING))
+			return;
+		startTime = System.currentTimeMillis();
+		try {
+			execute(replysender);
+			// execute may have set ERROR itself, keep that
+			if (!transition(SessionStatus.RUNNING, SessionStatus.DONE))
+				transition(SessionStatus.STOPPING, SessionStatus.DONE);
+		} catch (Exception e) {
+			Logger.error(this, "debug", e);
+			setError(e);
+		}
 	}
 
 	public final void cancelSession(Executor executor) {
-		if (!checkCancel())
+		// not yet running, nothing to stop
+		if (transition(SessionStatus.WAITING, SessionStatus.DONE))
+			return;
+		if (!transition(SessionStatus.RUNNING, SessionStatus.STOPPING))
 			throw new IllegalStateException();
-		sessionStatus = SessionStatus.STOPPING;
+		// the executing thread sets DONE when it returns
 		executor.execute(new Runnable() {
 			public void run() {
 				try {
 					cancel();
-					sessionStatus = SessionStatus.DONE;
 				} catch (Exception e) {
 					Logger.error(this, "debug", e);
 					setError(e);
@@ -98,19 +258,24 @@ public abstract class AbstractSiteToolSession {
 		});
 	}
 
-	private boolean checkStart() {
-		if (sessionStatus == SessionStatus.IDLE) return true;
-		if ((sessionStatus == SessionStatus.DONE) || (sessionStatus == SessionStatus.ERROR)) return canRetry();
-		return false;
-	}
-
-	private boolean checkCancel() {
-		if ((sessionStatus == SessionStatus.RUNNING) || (sessionStatus == SessionStatus.WAITING)) return true;
-		return false;
+	private boolean tryStart() {
+		while (true) {
+			SessionStatus old = sessionStatus.get();
+			if (old == SessionStatus.IDLE) {
+				// fine
+			} else if ((old == SessionStatus.DONE) || (old == SessionStatus.ERROR)) {
+				if (!canRetry()) return false;
+			} else {
+				return false;
+			}
+			if (transition(old, SessionStatus.WAITING))
+				return true;
+		}
 	}
 
 	public boolean checkRemove() {
-		if ((sessionStatus == SessionStatus.DONE) || (sessionStatus == SessionStatus.ERROR) || (sessionStatus == SessionStatus.IDLE)) return true;
+		SessionStatus status = sessionStatus.get();
+		if ((status == SessionStatus.DONE) || (status == SessionStatus.ERROR) || (status == SessionStatus.IDLE)) return true;
 		return false;
 	}
 
@@ -0,0 +1,75 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession.EditionProbe;
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession.HealResult;
+
+import freenet.client.InsertException;
+import freenet.keys.FreenetURI;
+
+/**
+ * The heal decision for one edition: with a probe, an edition that can
+ * be fetched is skipped, all others get the redirect inserted. Knows
+ * nothing about the node, the insert is done by an {@link Inserter}, so
+ * both can be replaced by local stand-ins. Thread safe, counts the probes
+ * for the hit rate.
+ */
+public class EditionHealer {
+
+	/** inserts the redirect of an edition */
+	public interface Inserter {
+		void insertRedirect(FreenetURI insertURI, FreenetURI targetURI) throws InsertException;
+	}
+
+	private final EditionProbe _probe;
+	private final Inserter _inserter;
+
+	// guarded by this
+	private int _probed;
+	private int _reachable;
+
+	/** @param probe may be null, all editions are inserted then */
+	public EditionHealer(EditionProbe probe, Inserter inserter) {
+		_probe = probe;
+		_inserter = inserter;
+	}
+
+	/**
+	 * @param fetchURI the edition as fetched by the probe
+	 * @param insertURI the edition as inserted
+	 * @return REACHABLE, HEALED or COLLISION (the edition was there)
+	 * @throws InsertException if the insert failed otherwise
+	 */
+	public HealResult heal(FreenetURI fetchURI, FreenetURI insertURI, FreenetURI targetURI) throws InsertException {
+		if (_probe != null) {
+			boolean reachable = _probe.isReachable(fetchURI);
+			synchronized (this) {
+				_probed++;
+				if (reachable)
+					_reachable++;
+			}
+			if (reachable)
+				return HealResult.REACHABLE;
+		}
+		try {
+			_inserter.insertRedirect(insertURI, targetURI);
+			return HealResult.HEALED;
+		} catch (InsertException e) {
+			if (e.getMode() == InsertException.COLLISION)
+				return HealResult.COLLISION;
+			throw e;
+		}
+	}
+
+	public synchronized int getProbed() {
+		return _probed;
+	}
+
+	public synchronized int getReachable() {
+		return _reachable;
+	}
+
+	/** reachable editions per 100 probed, 0 if none was probed */
+	public synchronized int getHitRate() {
+		return (_probed == 0) ? 0 : (_reachable * 100) / _probed;
+	}
+}
@@ -0,0 +1,80 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession.HealResult;
+import de.saces.fnplugins.SiteToolPlugin.sessions.USKHealSession.MemoryProbe;
+
+import freenet.client.InsertException;
+import freenet.keys.FreenetURI;
+
+public class EditionHealerTest extends TestCase {
+
+	/** records the inserts, fails with a collision for the given uri */
+	private static class RecordingInserter implements EditionHealer.Inserter {
+
+		final List<FreenetURI> inserted = new ArrayList<FreenetURI>();
+		FreenetURI collide;
+
+		public void insertRedirect(FreenetURI insertURI, FreenetURI targetURI) throws InsertException {
+			if (insertURI.equals(collide))
+				throw new InsertException(InsertException.COLLISION, "collision", insertURI);
+			inserted.add(insertURI);
+		}
+	}
+
+	private static FreenetURI edition(int n) throws MalformedURLException {
+		return new FreenetURI("KSK@edition-" + n);
+	}
+
+	public void testOnlyUnreachableInserted() throws Exception {
+		List<FreenetURI> reachable = new ArrayList<FreenetURI>();
+		reachable.add(edition(1));
+		reachable.add(edition(3));
+		reachable.add(edition(4));
+		RecordingInserter inserter = new RecordingInserter();
+		EditionHealer healer = new EditionHealer(new MemoryProbe(reachable), inserter);
+		FreenetURI target = new FreenetURI("KSK@target");
+
+		for (int i = 0; i < 5; i++) {
+			HealResult result = healer.heal(edition(i), edition(i), target);
+			assertEquals(reachable.contains(edition(i)) ? HealResult.REACHABLE : HealResult.HEALED, result);
+		}
+
+		assertEquals(2, inserter.inserted.size());
+		assertTrue(inserter.inserted.contains(edition(0)));
+		assertTrue(inserter.inserted.contains(edition(2)));
+		assertEquals(5, healer.getProbed());
+		assertEquals(3, healer.getReachable());
+		assertEquals(60, healer.getHitRate());
+	}
+
+	public void testWithoutProbeAllInserted() throws Exception {
+		RecordingInserter inserter = new RecordingInserter();
+		EditionHealer healer = new EditionHealer(null, inserter);
+		FreenetURI target = new FreenetURI("KSK@target");
+
+		for (int i = 0; i < 3; i++)
+			assertEquals(HealResult.HEALED, healer.heal(edition(i), edition(i), target));
+
+		assertEquals(3, inserter.inserted.size());
+		assertEquals(0, healer.getProbed());
+		assertEquals(0, healer.getHitRate());
+	}
+
+	public void testCollision() throws Exception {
+		RecordingInserter inserter = new RecordingInserter();
+		inserter.collide = edition(1);
+		EditionHealer healer = new EditionHealer(new MemoryProbe(new ArrayList<FreenetURI>()), inserter);
+		FreenetURI target = new FreenetURI("KSK@target");
+
+		assertEquals(HealResult.COLLISION, healer.heal(edition(1), edition(1), target));
+		assertTrue(inserter.inserted.isEmpty());
+		assertEquals(1, healer.getProbed());
+		assertEquals(0, healer.getReachable());
+	}
+}
@@ -1,10 +1,7 @@
 package de.saces.fnplugins.SiteToolPlugin.sessions;
 
-import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
 import freenet.support.HTMLNode;
-import freenet.support.SimpleFieldSet;
-import freenet.support.api.Bucket;
 
 public class HgPushSession extends AbstractSiteToolSession {
 
@@ -36,13 +33,6 @@ public class HgPushSession extends AbstractSiteToolSession {
 		node.addChild("#", "<Empty>");
 	}
 
-	@Override
-	public void handleFCP(PluginReplySender replysender, String command, SimpleFieldSet params,
-			Bucket data, int accesstype) throws PluginNotFoundException {
-		// TODO Auto-generated method stub
-		
-	}
-
 	@Override
 	public boolean canRetry() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,11 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+public interface ISessionCheckpointListener {
+
+	/**
+	 * Called when a session reached a point it can be resumed from, on the
+	 * session's thread. Must not block.
+	 */
+	public void onCheckpoint(AbstractSiteToolSession session);
+
+}
@@ -0,0 +1,13 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+/** a FCP command working on a session of type T */
+public interface ISessionCommand<T extends AbstractSiteToolSession> {
+
+	public void handle(T session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException;
+
+}
@@ -0,0 +1,13 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession.SessionStatus;
+
+public interface ISessionStatusListener {
+
+	/**
+	 * Called after the status of a session changed, on the thread that
+	 * changed it. Must not block.
+	 */
+	public void onStatusChanged(AbstractSiteToolSession session, SessionStatus oldStatus, SessionStatus newStatus);
+
+}
@@ -0,0 +1,42 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+/**
+ * Maps FCP command names to their handlers. Session types keep one as
+ * static field, fill it in their static initializer and dispatch to it
+ * from {@link AbstractSiteToolSession#handleFCP}. More commands can be
+ * registered later, e.g. by tools built on top of a session type.
+ */
+public class SessionCommandMap<T extends AbstractSiteToolSession> {
+
+	private final ConcurrentHashMap<String, ISessionCommand<? super T>> _commands;
+
+	public SessionCommandMap() {
+		_commands = new ConcurrentHashMap<String, ISessionCommand<? super T>>();
+	}
+
+	/** @throws IllegalStateException if the command is registered already */
+	public void register(String command, ISessionCommand<? super T> handler) {
+		if (_commands.putIfAbsent(command, handler) != null)
+			throw new IllegalStateException("Duplicate command: " + command);
+	}
+
+	public boolean contains(String command) {
+		return _commands.containsKey(command);
+	}
+
+	/** @return false if there is no handler for the command */
+	public boolean dispatch(T session, String command, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+		ISessionCommand<? super T> handler = _commands.get(command);
+		if (handler == null)
+			return false;
+		handler.handle(session, replysender, identifier, params, data, accesstype);
+		return true;
+	}
+}
@@ -0,0 +1,149 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.support.Logger;
+import freenet.support.MultiValueTable;
+import freenet.support.io.Closer;
+
+/**
+ * Log of a session. Only the last lines are kept in memory for the status
+ * panel, the full log is appended to a file and can be downloaded.
+ * If the file can't be written the log goes on in memory only.
+ */
+public class SessionLog {
+
+	public static final int DEFAULT_CAPACITY = 200;
+
+	private final File _file;
+	private final String[] _lines;
+	private int _next;
+	private long _count;
+	private Writer _writer;
+	private boolean _spillFailed;
+
+	/**
+	 * @param file the full log is appended to it, it is kept on close and
+	 * continued if the session is restored
+	 * @param capacity lines kept in memory
+	 */
+	public SessionLog(File file, int capacity) {
+		_file = file;
+		_lines = new String[Math.max(1, capacity)];
+	}
+
+	public synchronized void append(String line) {
+		_lines[_next] = line;
+		_next = (_next + 1) % _lines.length;
+		_count++;
+		spill(line);
+	}
+
+	private void spill(String line) {
+		if (_spillFailed)
+			return;
+		try {
+			if (_writer == null) {
+				File dir = _file.getParentFile();
+				if ((dir != null) && !dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Could not create " + dir);
+				_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file, true), "UTF-8"));
+			}
+			_writer.write(line);
+			_writer.write('\n');
+		} catch (IOException e) {
+			Logger.error(this, "Could not write log file " + _file + ", only recent lines are kept", e);
+			_spillFailed = true;
+			Closer.close(_writer);
+			_writer = null;
+		}
+	}
+
+	/** lines appended since this log was created */
+	public synchronized long getLineCount() {
+		return _count;
+	}
+
+	/** the lines kept in memory, oldest first */
+	public synchronized String getRecent() {
+		StringBuilder sb = new StringBuilder();
+		int kept = (int) Math.min(_count, _lines.length);
+		int start = (_next - kept + _lines.length) % _lines.length;
+		for (int i = 0; i < kept; i++) {
+			sb.append(_lines[(start + i) % _lines.length]);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** true if there is a log file to download */
+	public synchronized boolean haveFile() {
+		return !_spillFailed && _file.exists();
+	}
+
+	/** bytes of the log file */
+	public synchronized long getFileSize() {
+		flush();
+		return _file.length();
+	}
+
+	public void send(ToadletContext ctx, String fileName) throws ToadletContextClosedException, IOException {
+		long length;
+		InputStream is;
+		// only the flush is under the lock, appending goes on while sending;
+		// lines appended meanwhile are not in the announced length
+		synchronized (this) {
+			flush();
+			length = _file.length();
+			is = new FileInputStream(_file);
+		}
+		try {
+			MultiValueTable<String, String> head = new MultiValueTable<String, String>();
+			head.put("Content-Disposition", "attachment; filename=\"" + fileName + '"');
+			ctx.sendReplyHeaders(200, "Found", head, "text/plain; charset=utf-8", length);
+			byte[] buf = new byte[32 * 1024];
+			while (length > 0) {
+				int read = is.read(buf, 0, (int) Math.min(buf.length, length));
+				if (read < 0)
+					throw new IOException("Log file truncated: " + _file);
+				ctx.writeData(buf, 0, read);
+				length -= read;
+			}
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private void flush() {
+		if (_writer == null)
+			return;
+		try {
+			_writer.flush();
+		} catch (IOException e) {
+			Logger.error(this, "Could not write log file " + _file, e);
+		}
+	}
+
+	/** close the file, appending reopens it */
+	public synchronized void close() {
+		flush();
+		Closer.close(_writer);
+		_writer = null;
+	}
+
+	/** close and delete the file */
+	public synchronized void delete() {
+		close();
+		if (_file.exists() && !_file.delete())
+			Logger.error(this, "Could not delete log file " + _file);
+	}
+}
@@ -0,0 +1,164 @@
+package de.saces.fnplugins.SiteToolPlugin.sessions;
+
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession.SessionStatus;
+
+import freenet.support.HTMLNode;
+import freenet.support.SimpleFieldSet;
+import freenet.support.SizeUtil;
+import freenet.support.TimeUtil;
+
+/**
+ * Snapshot of the progress of a session, see
+ * {@link AbstractSiteToolSession#getProgress()}. Sessions fill in what they
+ * know, unknown counters stay -1. Rate and ETA are derived from the items
+ * done since the session was started.
+ */
+public class SessionProgress {
+
+	private final SessionStatus _status;
+	private final long _elapsed;
+	private String _phase;
+	private long _itemsTotal = -1;
+	private long _itemsDone = -1;
+	private long _itemsFailed = -1;
+	private long _bytesFetched = -1;
+	private long _bytesWritten = -1;
+
+	SessionProgress(SessionStatus status, long elapsed) {
+		_status = status;
+		_elapsed = elapsed;
+	}
+
+	public void setPhase(String phase) {
+		_phase = phase;
+	}
+
+	public void setItems(long total, long done, long failed) {
+		_itemsTotal = total;
+		_itemsDone = done;
+		_itemsFailed = failed;
+	}
+
+	public void setBytesFetched(long bytes) {
+		_bytesFetched = bytes;
+	}
+
+	public void setBytesWritten(long bytes) {
+		_bytesWritten = bytes;
+	}
+
+	public SessionStatus getStatus() {
+		return _status;
+	}
+
+	/** short description of what the session is doing, may be null */
+	public String getPhase() {
+		return _phase;
+	}
+
+	/** ms since the last start, 0 if it never ran */
+	public long getElapsed() {
+		return _elapsed;
+	}
+
+	public long getItemsTotal() {
+		return _itemsTotal;
+	}
+
+	public long getItemsDone() {
+		return _itemsDone;
+	}
+
+	public long getItemsFailed() {
+		return _itemsFailed;
+	}
+
+	public long getBytesFetched() {
+		return _bytesFetched;
+	}
+
+	public long getBytesWritten() {
+		return _bytesWritten;
+	}
+
+	/** finished (done or failed) items per second, -1 if unknown */
+	public double getRate() {
+		long finished = getItemsFinished();
+		if ((finished < 1) || (_elapsed < 1))
+			return -1;
+		return (finished * 1000.0) / _elapsed;
+	}
+
+	/** estimated ms until all items are finished, -1 if unknown */
+	public long getETA() {
+		double rate = getRate();
+		long finished = getItemsFinished();
+		if ((rate <= 0) || (_itemsTotal < 0) || (_status != SessionStatus.RUNNING))
+			return -1;
+		return (long) (Math.max(0, _itemsTotal - finished) * 1000 / rate);
+	}
+
+	private long getItemsFinished() {
+		if (_itemsDone < 0)
+			return -1;
+		return _itemsDone + Math.max(0, _itemsFailed);
+	}
+
+	/** the fields of a SessionProgress FCP message, unknown ones left out */
+	public SimpleFieldSet toFieldSet() {
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putSingle("SessionStatus", _status.name());
+		if (_phase != null)
+			sfs.putSingle("Phase", _phase);
+		sfs.put("Elapsed", _elapsed);
+		putKnown(sfs, "ItemsTotal", _itemsTotal);
+		putKnown(sfs, "ItemsDone", _itemsDone);
+		putKnown(sfs, "ItemsFailed", _itemsFailed);
+		putKnown(sfs, "BytesFetched", _bytesFetched);
+		putKnown(sfs, "BytesWritten", _bytesWritten);
+		double rate = getRate();
+		if (rate >= 0)
+			sfs.put("Rate", rate);
+		putKnown(sfs, "ETA", getETA());
+		return sfs;
+	}
+
+	private static void putKnown(SimpleFieldSet sfs, String key, long value) {
+		if (value >= 0)
+			sfs.put(key, value);
+	}
+
+	/** add a short summary to the node */
+	public void render(HTMLNode node) {
+		if (_phase != null) {
+			node.addChild("#", "Phase: " + _phase);
+			node.addChild("br");
+		}
+		if (_itemsDone >= 0) {
+			StringBuilder sb = new StringBuilder("Items: ");
+			sb.append(_itemsDone);
+			if (_itemsTotal >= 0)
+				sb.append(" / ").append(_itemsTotal);
+			if (_itemsFailed > 0)
+				sb.append(", failed: ").append(_itemsFailed);
+			double rate = getRate();
+			if (rate >= 0)
+				sb.append(" (").append(Math.round(rate * 100) / 100.0).append("/s)");
+			node.addChild("#", sb.toString());
+			node.addChild("br");
+		}
+		if (_bytesFetched >= 0) {
+			node.addChild("#", "Fetched: " + SizeUtil.formatSize(_bytesFetched));
+			node.addChild("br");
+		}
+		if (_bytesWritten >= 0) {
+			node.addChild("#", "Written: " + SizeUtil.formatSize(_bytesWritten));
+			node.addChild("br");
+		}
+		long eta = getETA();
+		if (eta >= 0) {
+			node.addChild("#", "Time left: " + TimeUtil.formatTime(eta));
+			node.addChild("br");
+		}
+	}
+}
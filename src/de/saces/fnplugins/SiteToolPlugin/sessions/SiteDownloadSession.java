@@ -1,27 +1,29 @@
 package de.saces.fnplugins.SiteToolPlugin.sessions;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.zip.GZIPOutputStream;
 
 import de.saces.fnplugins.SiteToolPlugin.Constants;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.ArchiveWriter;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.DownloadJournal;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.JournalCollector;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.LZMAOutputStream;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.ParallelGZIPOutputStream;
 import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.SiteCollector;
 import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.SiteParser;
 
-import SevenZip.Compression.LZMA.Encoder;
-
-
 import freenet.client.FetchException;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.async.ClientContext;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
 import freenet.keys.FreenetURI;
-import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
@@ -30,17 +32,26 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
+import freenet.support.plugins.helpers1.PluginContext;
 
 public class SiteDownloadSession extends AbstractSiteToolSession {
 
+	public static final String TYPE = "SiteDownload";
+
+	// in-flight items listed on the status panel
+	private static final int MAX_PANEL_ITEMS = 20;
+
 	private final FreenetURI _uri;
-	private String currentProgress = "Idle";
-	private Bucket _result;
+	private volatile String currentProgress = "Idle";
+	private volatile Bucket _result;
 	private final BucketFactory _bf;
 	private final String _archiveType;
 	private final HighLevelSimpleClient _hlsc;
 	private final ClientContext _clientContext;
-	private SiteParser _parser;
+	private volatile SiteParser _parser;
+	private volatile ArchiveWriter _writer;
+	private DownloadJournal _journal;
+	private volatile boolean _cancelled;
 	private boolean canRetry = true;
 
 	public SiteDownloadSession(String identifier, FreenetURI uri, BucketFactory bf, String archiveType, HighLevelSimpleClient hlsc, ClientContext clientContext) {
@@ -52,64 +63,116 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 		_clientContext = clientContext;
 	}
 
+	/** recreate a stored session, fetched items are restored from its journal */
+	public static SiteDownloadSession restore(String identifier, SimpleFieldSet descriptor, PluginContext pluginContext) throws MalformedURLException {
+		FreenetURI uri = new FreenetURI(descriptor.get("URI"));
+		String archiveType = descriptor.get("ArchiveType");
+		return new SiteDownloadSession(identifier, uri, pluginContext.clientCore.tempBucketFactory, archiveType, pluginContext.hlsc, pluginContext.clientCore.clientContext);
+	}
+
+	@Override
+	public SimpleFieldSet getDescriptor() {
+		SimpleFieldSet sfs = new SimpleFieldSet(false);
+		sfs.putSingle("Type", TYPE);
+		sfs.putSingle("URI", _uri.toString(false, false));
+		sfs.putSingle("ArchiveType", _archiveType);
+		return sfs;
+	}
+
 	@Override
 	public void cancel() {
+		_cancelled = true;
 		_parser.cancel(true);
 	}
 
 	@Override
 	public void destroySession() {
-		// TODO Auto-generated method stub
-		
+		SessionStatus status = getStatus();
+		if (((status == SessionStatus.RUNNING) || (status == SessionStatus.STOPPING)) && (_parser != null)) {
+			_cancelled = true;
+			_parser.cancel(true);
+		}
+		freeResult();
+	}
+
+	@Override
+	public void purge() {
+		DownloadJournal.deleteDirectory(getJournalDir());
+	}
+
+	@Override
+	public long getResultSize() {
+		Bucket result = _result;
+		return (result == null) ? 0 : result.size();
+	}
+
+	private synchronized void freeResult() {
+		if (_result != null) {
+			_result.free();
+			_result = null;
+		}
 	}
 
 	@Override
 	public void execute(PluginReplySender replysender) {
 		Logger.error(this, "executione begin");
 		currentProgress = "begin";
+		_cancelled = false;
 		try {
 			setNewTempBucket(_bf);
 			OutputStream os = new BufferedOutputStream(_result.getOutputStream());
 			if (Constants.DL_TYPE_TARGZ.equals(_archiveType)) {
 				os = new GZIPOutputStream(os);
+			} else if (Constants.DL_TYPE_TARGZ_PARALLEL.equals(_archiveType)) {
+				os = new ParallelGZIPOutputStream(os, _clientContext.mainExecutor);
+			} else if (Constants.DL_TYPE_TAR7Z.equals(_archiveType)) {
+				os = new LZMAOutputStream(os, _clientContext.mainExecutor);
 			}
 
 			SiteCollector collector = new SiteCollector(os, Constants.DL_TYPE_ZIP.equals(_archiveType), _bf);
-			_parser = new SiteParser(collector, _uri, true, true, _hlsc, _clientContext);
+			// the session id may be reused for another site or archive type
+			_journal = new DownloadJournal(getJournalDir(), _uri.toString(false, false) + ' ' + _archiveType);
+			JournalCollector journalCollector = new JournalCollector(collector, _journal);
+			_writer = new ArchiveWriter(journalCollector);
+			_parser = new SiteParser(_writer, _uri, true, true, _hlsc, _clientContext);
+			// only fetch what is not in the journal from a previous run
+			_parser.setSkipItems(_journal.getNames());
+			// stop fetching while the writer falls behind
+			_parser.setThrottle(_writer);
+			_writer.setDrainListener(new Runnable() {
+				public void run() {
+					_parser.resume();
+				}
+			});
+			boolean completed = false;
 			try {
+				currentProgress = "restoring items from journal";
+				journalCollector.replay();
 				currentProgress = "init done";
 				_parser.parseSite();
-				currentProgress = "started";
+				currentProgress = "fetching";
+				// this thread is the archive writer until all items are written
+				_writer.writeAll();
 				_parser.waitForCompletion();
+				// the collector closed the archive stream on finish
+				completed = true;
 			} finally {
-				Closer.close(os);
-				os = null;
-			}
-
-			if (Constants.DL_TYPE_TAR7Z.equals(_archiveType)) {
-				Bucket input = _result;
-				_result = _bf.makeBucket(-1);
-				BufferedInputStream cis = null;
-				BufferedOutputStream cos = null;
-				try {
-					cis = new BufferedInputStream(input.getInputStream());
-					cos = new BufferedOutputStream(_result.getOutputStream());
-					Encoder encoder = new Encoder();
-					encoder.SetEndMarkerMode( true );
-					encoder.SetDictionarySize( 1 << 20 );
-					// enc.WriteCoderProperties( out );
-					// 5d 00 00 10 00
-					encoder.Code( cis, cos, -1, -1, null );
-					cis.close();
-					cos.close();
-				} finally {
-					Closer.close(cis);
-					Closer.close(cos);
-					Closer.close(input);
+				if (!completed) {
+					// parseSite() or the writer failed, stop the fetches
+					// and free what is queued, nobody writes it anymore
+					_parser.cancel(false);
+					_writer.discard();
+					Closer.close(os);
 				}
+				os = null;
+				_journal.close();
 			}
 
-			currentProgress = "done?";
+			// a cancelled download, or one with failed items, keeps its
+			// journal for a restart
+			if (!_cancelled && (_parser.getItemsError() == 0))
+				_journal.delete();
+			currentProgress = "done";
 		} catch (IOException e) {
 			Logger.error(this, "DEBUG", e);
 			setError(e);
@@ -121,6 +184,19 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 		Logger.error(this, "executione end");
 	}
 
+	@Override
+	protected void fillProgress(SessionProgress progress) {
+		progress.setPhase(currentProgress);
+		SiteParser parser = _parser;
+		if (parser != null) {
+			progress.setItems(parser.getItemsTotal(), parser.getItemsDone(), parser.getItemsError());
+			progress.setBytesFetched(parser.getBytesFetched());
+		}
+		ArchiveWriter writer = _writer;
+		if (writer != null)
+			progress.setBytesWritten(writer.getWrittenBytes());
+	}
+
 	@Override
 	public void getExtraStatusPanel(HTMLNode node) {
 		if (_parser != null) {
@@ -128,13 +204,31 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 			node.addChild("br");
 			node.addChild("#", "Items left: " + _parser.getItemsLeft());
 			node.addChild("br");
+			node.addChild("#", "Items queued: " + _parser.getItemsQueued());
+			node.addChild("br");
+			node.addChild("#", "Items running: " + _parser.getItemsRunning());
+			node.addChild("br");
+			if (_writer != null) {
+				node.addChild("#", "Items waiting for archive: " + _writer.getQueuedItems() + " (" + _writer.getQueuedBytes() + " bytes)");
+				node.addChild("br");
+			}
 			node.addChild("#", "Items done: " + _parser.getItemsDone());
 			node.addChild("br");
+			node.addChild("#", "Items restored from journal: " + _parser.getItemsSkipped());
+			node.addChild("br");
+			node.addChild("#", "Items sharing a fetch: " + _parser.getItemsDuplicate());
+			node.addChild("br");
 			node.addChild("#", "Items failed: " + _parser.getItemsError());
 			node.addChild("br");
 			node.addChild("br");
 			HashMap<String, String> stats = _parser.getProgressStats();
+			int shown = 0;
 			for (Entry<String, String> entry : stats.entrySet()) {
+				if (shown++ == MAX_PANEL_ITEMS) {
+					// the live view has the totals, no need to list them all
+					node.addChild("#", "... and " + (stats.size() - MAX_PANEL_ITEMS) + " more");
+					break;
+				}
 				node.addChild("#", "Name: " + entry.getKey());
 				node.addChild("br");
 				node.addChild("#", "Stat: " + entry.getValue());
@@ -146,22 +240,17 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 		}
 	}
 
-	@Override
-	public void handleFCP(PluginReplySender replysender, String command, SimpleFieldSet params,
-			Bucket data, int accesstype) throws PluginNotFoundException {
-		// TODO Auto-generated method stub
-		
-	}
-
 	@Override
 	public boolean canRetry() {
 		return canRetry;
 	}
 
-	private void setNewTempBucket(BucketFactory bf) throws IOException {
-		if (_result != null) {
-			_result.free();
-		}
+	private File getJournalDir() {
+		return new File(Constants.DOWNLOAD_JOURNAL_DIR, DownloadJournal.hash(sessionID));
+	}
+
+	private synchronized void setNewTempBucket(BucketFactory bf) throws IOException {
+		freeResult();
 		_result = bf.makeBucket(-1);
 	}
 
@@ -172,7 +261,7 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 		if (Constants.DL_TYPE_TAR7Z.equals(_archiveType)) {
 			mime = "application/x-lzma-compressed-tar";
 			ext = "tar.lzma";
-		} else if (Constants.DL_TYPE_TARGZ.equals(_archiveType)) {
+		} else if (Constants.DL_TYPE_TARGZ.equals(_archiveType) || Constants.DL_TYPE_TARGZ_PARALLEL.equals(_archiveType)) {
 			mime = "application/x-gtar";
 			ext = "tar.gz";	
 		} else if (Constants.DL_TYPE_TAR.equals(_archiveType)) {
@@ -184,14 +273,17 @@ public class SiteDownloadSession extends AbstractSiteToolSession {
 		} else {
 			throw new IllegalStateException("Invalid archive type '"+ _archiveType+"'");
 		}
+		Bucket result = _result;
+		if (result == null)
+			throw new IllegalStateException("Result was freed");
 		MultiValueTable<String, String> head = new MultiValueTable<String, String>();
 		head.put("Content-Disposition", "attachment; filename=\"" + "sitearchive."+ ext + '"');
-		ctx.sendReplyHeaders(200, "Found", head, mime, _result.size());
-		ctx.writeData(_result);
+		ctx.sendReplyHeaders(200, "Found", head, mime, result.size());
+		ctx.writeData(result);
 	}
 
 	@Override
 	public boolean haveResult() {
-		return true;
+		return _result != null;
 	}
 }
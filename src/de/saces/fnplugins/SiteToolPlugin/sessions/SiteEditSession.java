@@ -1,72 +1,268 @@
 package de.saces.fnplugins.SiteToolPlugin.sessions;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
-
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.db4o.ObjectContainer;
 
+import de.saces.fnplugins.SiteToolPlugin.ChkCache;
+import de.saces.fnplugins.SiteToolPlugin.Constants;
+import de.saces.fnplugins.SiteToolPlugin.ContainerPlanner;
+import de.saces.fnplugins.SiteToolPlugin.PlannedManifestPutter;
+import de.saces.fnplugins.SiteToolPlugin.DirectoryScanner;
+import de.saces.fnplugins.SiteToolPlugin.FCPHandler;
+import de.saces.fnplugins.SiteToolPlugin.ManifestListing;
+import de.saces.fnplugins.SiteToolPlugin.ManifestTree;
+import de.saces.fnplugins.SiteToolPlugin.STFCPException;
+import de.saces.fnplugins.SiteToolPlugin.SiteRecord;
 import de.saces.fnplugins.SiteToolPlugin.VerboseWaiter;
 
+import freenet.client.ClientMetadata;
 import freenet.client.DefaultMIMETypes;
+import freenet.client.InsertBlock;
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.PutWaiter;
+import freenet.client.async.ClientPutter;
 import freenet.client.async.DatabaseDisabledException;
+import freenet.client.async.BaseManifestPutter;
 import freenet.client.async.DefaultManifestPutter;
 import freenet.client.async.ManifestElement;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
+import freenet.pluginmanager.FredPluginFCP;
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
 import freenet.support.HTMLNode;
+import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.plugins.helpers1.AbstractFCPHandler;
 import freenet.support.plugins.helpers1.PluginContext;
 
 public class SiteEditSession extends AbstractSiteToolSession {
 
-	private HashMap<String, Object> data;
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(SiteEditSession.class);
+	}
+
+	private static final SessionCommandMap<SiteEditSession> COMMANDS = new SessionCommandMap<SiteEditSession>();
+
+	static {
+		COMMANDS.register("AddFileItem", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				if (checkFullAccess(replysender, identifier, accesstype))
+					session.addFileItem(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("AddDirectory", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				if (checkFullAccess(replysender, identifier, accesstype))
+					session.addDirectory(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("AddFileItems", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				if (checkFullAccess(replysender, identifier, accesstype))
+					session.addFileItems(replysender, identifier, params, data);
+			}
+		});
+		COMMANDS.register("ListManifest", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.listManifest(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("SetProgressInterval", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.setProgressInterval(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("SetInsertURI", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.setInsertURI(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("SetContainerLimits", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.setContainerLimits(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("PlanContainers", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.planContainers(replysender, identifier, params);
+			}
+		});
+		COMMANDS.register("SetIncremental", new ISessionCommand<SiteEditSession>() {
+			public void handle(SiteEditSession session, PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data, int accesstype) throws PluginNotFoundException {
+				session.setIncremental(replysender, identifier, params);
+			}
+		});
+	}
+
+	/** single file inserts running at once */
+	private static final int INSERT_CONCURRENCY = 4;
+
+	/**
+	 * changed files smaller than this (one block) stay in the manifest
+	 * containers in an incremental insert, an own CHK gains nothing
+	 */
+	private static final long INCREMENTAL_INLINE_SIZE = 32 * 1024;
+
+	/** a file inserted as CHK on its own, see {@link SiteEditSession#insertFiles(PluginReplySender, List, String)} */
+	private static class FileInsert {
+		final String path;
+		final ManifestElement element;
+		// content hash, may be null without a cache
+		final String hash;
+		FreenetURI chk;
+
+		FileInsert(String path, ManifestElement element, String hash) {
+			this.path = path;
+			this.element = element;
+			this.hash = hash;
+		}
+	}
+
+	/** local files are only read for clients with full FCP access */
+	private static boolean checkFullAccess(PluginReplySender replysender, String identifier, int accesstype) throws PluginNotFoundException {
+		if (accesstype == FredPluginFCP.ACCESS_FCP_FULL)
+			return true;
+		AbstractFCPHandler.sendError(replysender, STFCPException.ACCESS_DENIED, identifier, "Adding local files needs full FCP access");
+		return false;
+	}
+
+	/** add a command to all site edit sessions */
+	public static void registerCommand(String command, ISessionCommand<? super SiteEditSession> handler) {
+		COMMANDS.register(command, handler);
+	}
+
+	private ManifestTree data;
 
 	private FreenetURI insertURI;
 
 	private final PluginContext pluginContext;
 
+	private final ChkCache chkCache;
+
 	private FreenetURI fetchURI;
 
+	private volatile long progressInterval = VerboseWaiter.DEFAULT_PROGRESS_INTERVAL;
+
+	private volatile boolean incremental;
+
+	private volatile long maxContainerSize = ContainerPlanner.DEFAULT_MAX_CONTAINER_SIZE;
+	private volatile long externalizeThreshold = ContainerPlanner.DEFAULT_EXTERNALIZE_THRESHOLD;
+	// files found in the CHK cache during the current insert
+	private final AtomicInteger cacheHits = new AtomicInteger();
+	// files with the content hash from scanning, by their bucket, guarded by this
+	private final Map<Bucket, DirectoryScanner.ScannedFile> knownHashes = new IdentityHashMap<Bucket, DirectoryScanner.ScannedFile>();
+
+	private volatile VerboseWaiter currentWaiter;
+	private volatile boolean cancelled;
+	// the manifest insert and the single file inserts running, guarded by this
+	private BaseManifestPutter currentPutter;
+	private final Set<ClientPutter> fileInserts = new HashSet<ClientPutter>();
+	// AddDirectory scans running, guarded by this
+	private final Set<DirectoryScanner> scanners = new HashSet<DirectoryScanner>();
+	// set by destroySession(), guarded by this
+	private boolean destroyed;
+	private volatile String phase = "Collecting files";
+	// files compared or inserted on their own
+	private volatile int filesTotal = -1;
+	private final AtomicInteger filesDone = new AtomicInteger();
+
 	public SiteEditSession(String identifier, PluginContext pctx) {
+		this(identifier, pctx, null);
+	}
+
+	/** @param cache CHKs of content inserted before, may be null */
+	public SiteEditSession(String identifier, PluginContext pctx, ChkCache cache) {
 		super(identifier);
-		data = new HashMap<String, Object>();
+		data = new ManifestTree();
 		pluginContext = pctx;
+		chkCache = cache;
 	}
 
 	@Override
 	public void cancel() {
-		// TODO Auto-generated method stub
-		
+		cancelled = true;
+		BaseManifestPutter dmp;
+		List<ClientPutter> inserts;
+		List<DirectoryScanner> scans;
+		synchronized (this) {
+			dmp = currentPutter;
+			inserts = new ArrayList<ClientPutter>(fileInserts);
+			scans = new ArrayList<DirectoryScanner>(scanners);
+		}
+		for (DirectoryScanner scanner : scans)
+			scanner.cancel();
+		if (dmp != null)
+			dmp.cancel(null, pluginContext.clientCore.clientContext);
+		for (ClientPutter putter : inserts)
+			putter.cancel(null, pluginContext.clientCore.clientContext);
 	}
 
 	@Override
 	public void destroySession() {
-		// TODO Auto-generated method stub
-		
+		synchronized (this) {
+			// a scan finishing later must not add to the new tree
+			destroyed = true;
+		}
+		cancel();
+		synchronized (this) {
+			data.visit(new ManifestTree.Visitor() {
+				public void visit(String path, ManifestElement element) {
+					if (element.getData() != null)
+						element.getData().free();
+				}
+			});
+			data = new ManifestTree();
+			knownHashes.clear();
+		}
+		currentWaiter = null;
 	}
 
 	@Override
 	public void execute(final PluginReplySender replysender) {
 		// insert data
-		VerboseWaiter vw = new VerboseWaiter(replysender, sessionID);
+		VerboseWaiter vw = new VerboseWaiter(replysender, sessionID, pluginContext.pluginRespirator.getNode().getTicker(), progressInterval);
+		currentWaiter = vw;
+		phase = "Inserting";
+		cancelled = false;
 		try {
-			fetchURI = insert(vw);
+			cacheHits.set(0);
+			if (incremental) {
+				fetchURI = insertIncremental(replysender, vw);
+			} else {
+				fetchURI = insertPlanned(replysender, vw);
+			}
+			phase = "Inserted";
 		} catch (InsertException e) {
+			phase = cancelled ? "Cancelled" : "Insert failed";
 			try {
 				AbstractFCPHandler.sendErrorWithTrace(replysender, sessionID, e);
 			} catch (PluginNotFoundException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				Logger.normal(this, "Client gone, insert error not sent for " + sessionID, e1);
 			}
 			return;
 		}
@@ -77,52 +273,360 @@ public class SiteEditSession extends AbstractSiteToolSession {
 		try {
 			replysender.send(sfs);
 		} catch (PluginNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Logger.normal(this, "Client gone, insert result not sent for " + sessionID + ": " + fetchURI, e);
 		}
 	}
 
+	/** items are the blocks of the insert */
+	@Override
+	protected void fillProgress(SessionProgress progress) {
+		progress.setPhase(phase);
+		VerboseWaiter vw = currentWaiter;
+		int done = filesDone.get();
+		if ((filesTotal >= 0) && (done < filesTotal))
+			progress.setItems(filesTotal, done, 0);
+		else if ((vw != null) && (vw.getBlocksTotal() >= 0))
+			progress.setItems(vw.getBlocksTotal(), vw.getBlocksDone(), vw.getBlocksFailed());
+	}
+
 	@Override
 	public void getExtraStatusPanel(HTMLNode node) {
 		node.addChild("#", "<Empty>");
 	}
 
 	@Override
-	public void handleFCP(PluginReplySender replysender, String command, SimpleFieldSet params,
+	public boolean handleFCP(PluginReplySender replysender, String command, String identifier, SimpleFieldSet params,
 			Bucket data, int accesstype) throws PluginNotFoundException {
-		String id = params.get("Identifier");
-		if ("AddFileItem".equals(command)) {
-			String fileName = params.get("FileName");
-			File f = new File(fileName);
-			String name = params.get("Name");
-			String mime = params.get("MimeType");
-			if (mime == null)
-				mime = DefaultMIMETypes.guessMIMEType(fileName, false);
-			FileBucket bucket = new FileBucket(f, true, false, false, false, false);
-			addItem(replysender, id, name, mime, bucket, false, true);
+		return COMMANDS.dispatch(this, command, replysender, identifier, params, data, accesstype);
+	}
+
+	private void addFileItem(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		String fileName = params.get("FileName");
+		File f = new File(fileName);
+		String name = params.get("Name");
+		String mime = params.get("MimeType");
+		if (mime == null)
+			mime = DefaultMIMETypes.guessMIMEType(fileName, false);
+		FileBucket bucket = new FileBucket(f, true, false, false, false, false);
+		addItem(replysender, identifier, name, mime, bucket, false, true);
+	}
+
+	/**
+	 * Add many files with one message and one reply. The files are given
+	 * like ClientPutComplexDir does (Files.N.Name, Files.N.FileName and
+	 * optional Files.N.MimeType), or, if there are no Files fields, as
+	 * data: one UTF-8 line per file, 'name TAB filename [TAB mimetype]'.
+	 *
+	 * The reply 'FilesAdded' has the counts and Failed.N.Index/Name/Description
+	 * for each file that was not added.
+	 */
+	private void addFileItems(PluginReplySender replysender, String identifier, SimpleFieldSet params, Bucket data) throws PluginNotFoundException {
+		List<String[]> items;
+		try {
+			if (params.subset("Files") != null) {
+				items = parseFileItems(params.subset("Files"));
+			} else if (data != null) {
+				items = parseFileIndex(data);
+			} else {
+				AbstractFCPHandler.sendError(replysender, 200, identifier, "No files given");
+				return;
+			}
+		} catch (IOException e) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Invalid file list: " + e.getMessage());
 			return;
 		}
-		if ("SetInsertURI".equals(command)) {
-			String uri = params.get("InsertURI");
 
-			try {
-				insertURI = new FreenetURI(uri);
-			} catch (MalformedURLException e) {
-				AbstractFCPHandler.sendError(replysender, 200, id, "Not a valid Freenet URI: "+uri);
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		int added = 0;
+		int failed = 0;
+		synchronized (this) {
+			for (int i = 0; i < items.size(); i++) {
+				String[] item = items.get(i);
+				String name = item[0];
+				String fileName = item[1];
+				String mime = item[2];
+				File f = new File(fileName);
+				String error;
+				if (!f.isFile()) {
+					error = "No such file: " + fileName;
+				} else {
+					if (mime == null)
+						mime = DefaultMIMETypes.guessMIMEType(fileName, false);
+					error = putItem(name, mime, new FileBucket(f, true, false, false, false, false), false, true);
+				}
+				if (error == null) {
+					added++;
+				} else {
+					sfs.put("Failed." + failed + ".Index", i);
+					sfs.putSingle("Failed." + failed + ".Name", name);
+					sfs.putSingle("Failed." + failed + ".Description", error);
+					failed++;
+				}
+			}
+		}
+		sfs.putOverwrite("Status", "FilesAdded");
+		sfs.put("Code", 0);
+		sfs.putSingle("Identifier", identifier);
+		sfs.put("Count", items.size());
+		sfs.put("Added", added);
+		sfs.put("Failed", failed);
+		sfs.putSingle("Description", added + " of " + items.size() + " items added");
+		replysender.send(sfs);
+	}
+
+	/**
+	 * Add all files below a local directory. Parameters: Directory, Path
+	 * (where in the site, default the top) and Overwrite. The directory is
+	 * scanned in parallel on the executor, mime types are guessed and the
+	 * files hashed on the way. A DirectoryScanned message is sent for each
+	 * directory, the files are added at once when the scan is done and
+	 * DirectoryAdded is sent, with Failed.N.Name/Description for each file
+	 * not added and Error.N for what could not be read.
+	 */
+	private void addDirectory(final PluginReplySender replysender, final String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		String dirName = params.get("Directory");
+		if (dirName == null) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Missing 'Directory'");
+			return;
+		}
+		final File dir = new File(dirName);
+		if (!dir.isDirectory()) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Not a directory: " + dirName);
+			return;
+		}
+		String path = params.get("Path");
+		if (path == null)
+			path = "";
+		while (path.startsWith("/"))
+			path = path.substring(1);
+		if ((path.length() > 0) && !path.endsWith("/"))
+			path = path + '/';
+		final String prefix = path;
+		final boolean overwrite = params.getBoolean("Overwrite", false);
+		pluginContext.clientCore.getExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					scanDirectory(replysender, identifier, dir, prefix, overwrite);
+				} catch (PluginNotFoundException e) {
+					Logger.normal(this, "Client gone, directory not added: " + dir);
+				}
+			}
+		});
+	}
+
+	private void scanDirectory(final PluginReplySender replysender, final String identifier, File dir, String prefix, boolean overwrite) throws PluginNotFoundException {
+		final DirectoryScanner scanner = new DirectoryScanner(pluginContext.clientCore.getExecutor(), DirectoryScanner.DEFAULT_WORKERS);
+		synchronized (this) {
+			if (destroyed)
 				return;
-				
+			scanners.add(scanner);
+		}
+		List<DirectoryScanner.ScannedFile> files;
+		try {
+			files = scanner.scan(dir, prefix, new DirectoryScanner.Listener() {
+				public void onDirectory(String dirPath, List<DirectoryScanner.ScannedFile> scanned, List<String> errors) {
+					SimpleFieldSet sfs = new SimpleFieldSet(true);
+					sfs.putOverwrite("Status", "DirectoryScanned");
+					sfs.putSingle("Identifier", identifier);
+					sfs.putSingle("Directory", dirPath);
+					sfs.put("Files", scanned.size());
+					sfs.put("Errors", errors.size());
+					try {
+						replysender.send(sfs);
+					} catch (PluginNotFoundException e) {
+						scanner.cancel();
+					}
+				}
+			});
+		} catch (IOException e) {
+			synchronized (this) {
+				scanners.remove(scanner);
 			}
+			AbstractFCPHandler.sendError(replysender, 200, identifier, e.getMessage());
+			return;
+		}
+
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		int added = 0;
+		int failed = 0;
+		boolean dropped;
+		synchronized (this) {
+			scanners.remove(scanner);
+			// the session was cancelled or removed meanwhile, the scan is incomplete
+			dropped = destroyed || scanner.isCancelled();
+			if (dropped)
+				files.clear();
+			for (DirectoryScanner.ScannedFile file : files) {
+				Bucket bucket = file.getBucket();
+				String error = putItem(file.path, file.mimeType, bucket, overwrite, true);
+				if (error == null) {
+					knownHashes.put(bucket, file);
+					added++;
+				} else {
+					sfs.putSingle("Failed." + failed + ".Name", file.path);
+					sfs.putSingle("Failed." + failed + ".Description", error);
+					failed++;
+				}
+			}
+		}
+		if (dropped) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Directory scan cancelled, nothing added from " + dir);
+			return;
+		}
+		List<String> errors = scanner.getErrors();
+		for (int i = 0; i < errors.size(); i++)
+			sfs.putSingle("Error." + i, errors.get(i));
+		sfs.putOverwrite("Status", "DirectoryAdded");
+		sfs.put("Code", 0);
+		sfs.putSingle("Identifier", identifier);
+		sfs.put("Count", files.size());
+		sfs.put("Added", added);
+		sfs.put("Failed", failed);
+		sfs.put("Errors", errors.size());
+		sfs.putSingle("Description", added + " of " + files.size() + " files added from " + dir);
+		replysender.send(sfs);
+	}
+
+	/** @return name, filename, mime (may be null) of each file */
+	private static List<String[]> parseFileItems(SimpleFieldSet files) throws IOException {
+		List<String[]> items = new ArrayList<String[]>();
+		for (int i = 0; ; i++) {
+			SimpleFieldSet file = files.subset(Integer.toString(i));
+			if (file == null)
+				break;
+			String name = file.get("Name");
+			String fileName = file.get("FileName");
+			if ((name == null) || (fileName == null))
+				throw new IOException("Files." + i + " needs Name and FileName");
+			items.add(new String[] { name, fileName, file.get("MimeType") });
+		}
+		return items;
+	}
+
+	private static List<String[]> parseFileIndex(Bucket data) throws IOException {
+		List<String[]> items = new ArrayList<String[]>();
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(data.getInputStream(), "UTF-8"));
+			String line;
+			int lineNo = 0;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				if (line.length() == 0)
+					continue;
+				String[] parts = line.split("\\t");
+				if ((parts.length < 2) || (parts.length > 3))
+					throw new IOException("Line " + lineNo + ": expected name, filename and optional mimetype");
+				items.add(new String[] { parts[0], parts[1], (parts.length == 3) ? parts[2] : null });
+			}
+		} finally {
+			Closer.close(br);
+		}
+		return items;
+	}
+
+	/**
+	 * One page of the manifest, a ManifestItem per item and a final
+	 * EndManifestListing. Parameters: After (cursor), MaxResults, Prefix.
+	 */
+	private void listManifest(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		ManifestListing listing = new ManifestListing(params.get("After"), params.get("Prefix"), params.getInt("MaxResults", ManifestListing.DEFAULT_MAX_RESULTS));
+		synchronized (this) {
+			listing.list(data);
+		}
+		for (ManifestListing.Item item : listing.getItems()) {
 			SimpleFieldSet sfs = new SimpleFieldSet(true);
-			sfs.putOverwrite("Status", "InsertURISet");
-			sfs.put("Code", 0);
-			sfs.putSingle("Identifier", id);
-			sfs.putSingle("Description", "InsertURI set to: "+ insertURI.toString(false, false));
+			sfs.putOverwrite("Status", "ManifestItem");
+			sfs.putSingle("Identifier", identifier);
+			sfs.putSingle("Name", item.path);
+			String mime = item.element.getMimeTypeOverride();
+			if (mime != null)
+				sfs.putSingle("MimeType", mime);
+			sfs.put("Size", item.element.getSize());
 			replysender.send(sfs);
+		}
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Status", "EndManifestListing");
+		sfs.putSingle("Identifier", identifier);
+		sfs.put("Count", listing.getItems().size());
+		sfs.put("More", listing.hasMore());
+		if (listing.hasMore())
+			sfs.putSingle("Cursor", listing.getCursor());
+		replysender.send(sfs);
+	}
+
+	/** minimum ms between two insert progress messages, 0 for all */
+	private void setProgressInterval(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		long interval = params.getLong("Interval", -1);
+		if (interval < 0) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Missing or invalid 'Interval'");
+			return;
+		}
+		progressInterval = interval;
+		AbstractFCPHandler.sendSuccess(replysender, identifier, "Progress interval set to "+interval+" ms");
+	}
+
+	/**
+	 * Incremental=true makes the next inserts only insert files changed
+	 * since the last incremental insert of the same site, see
+	 * {@link #insertIncremental(PluginReplySender, PutWaiter)}.
+	 */
+	private void setIncremental(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		incremental = params.getBoolean("Incremental", true);
+		AbstractFCPHandler.sendSuccess(replysender, identifier, "Incremental insert " + (incremental ? "enabled" : "disabled"));
+	}
+
+	/**
+	 * MaxContainerSize and ExternalizeThreshold (0 keeps big files in
+	 * containers) for the next inserts, see {@link ContainerPlanner}.
+	 */
+	private void setContainerLimits(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		long maxSize = params.getLong("MaxContainerSize", maxContainerSize);
+		long threshold = params.getLong("ExternalizeThreshold", externalizeThreshold);
+		if ((maxSize <= 0) || (threshold < 0)) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Invalid 'MaxContainerSize' or 'ExternalizeThreshold'");
+			return;
+		}
+		maxContainerSize = maxSize;
+		externalizeThreshold = threshold;
+		AbstractFCPHandler.sendSuccess(replysender, identifier, "Container limits set");
+	}
+
+	/**
+	 * Dry run: reply a ContainerPlan with the layout and estimated block
+	 * count for the current files. MaxContainerSize and ExternalizeThreshold
+	 * override the session's limits for this plan only.
+	 */
+	private void planContainers(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		ContainerPlanner planner = new ContainerPlanner(
+				params.getLong("MaxContainerSize", maxContainerSize),
+				params.getLong("ExternalizeThreshold", externalizeThreshold));
+		ContainerPlanner.Plan plan;
+		synchronized (this) {
+			plan = planner.plan(data);
+		}
+		SimpleFieldSet sfs = plan.toFieldSet();
+		sfs.putOverwrite("Status", "ContainerPlan");
+		sfs.putSingle("Identifier", identifier);
+		replysender.send(sfs);
+	}
+
+	private void setInsertURI(PluginReplySender replysender, String identifier, SimpleFieldSet params) throws PluginNotFoundException {
+		String uri = params.get("InsertURI");
+
+		try {
+			insertURI = new FreenetURI(uri);
+		} catch (MalformedURLException e) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, "Not a valid Freenet URI: "+uri);
 			return;
+			
 		}
-		System.out.println("Handle me: "+command);
-		new Error("Hier gehts weiter").printStackTrace();
-		
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Status", "InsertURISet");
+		sfs.put("Code", 0);
+		sfs.putSingle("Identifier", identifier);
+		sfs.putSingle("Description", "InsertURI set to: "+ insertURI.toString(false, false));
+		replysender.send(sfs);
 	}
 
 	@Override
@@ -130,7 +634,275 @@ public class SiteEditSession extends AbstractSiteToolSession {
 		return false;
 	}
 
-	private FreenetURI insert(PutWaiter pw) throws InsertException {
+	/**
+	 * Insert the files the planner externalizes on their own, a few at
+	 * once, then the manifest with redirects to them, the other files
+	 * packed into the planned containers.
+	 */
+	private FreenetURI insertPlanned(PluginReplySender replysender, PutWaiter pw) throws InsertException {
+		phase = "Planning";
+		ContainerPlanner planner = new ContainerPlanner(maxContainerSize, externalizeThreshold);
+		ContainerPlanner.Plan plan;
+		HashMap<String, Object> manifest;
+		synchronized (this) {
+			plan = planner.plan(data);
+			manifest = data.toHashMap();
+		}
+		List<ManifestListing.Item> externals = plan.getExternals();
+		if (logMINOR)
+			Logger.minor(this, "Insert of " + sessionID + ": " + plan.getContainers().size() + " containers, " + externals.size() + " external files, about " + plan.getBlockCount() + " blocks");
+		if (!externals.isEmpty()) {
+			phase = "Inserting big files";
+			List<FileInsert> inserts = new ArrayList<FileInsert>(externals.size());
+			for (ManifestListing.Item item : externals) {
+				checkCancelled();
+				String hash = null;
+				if (chkCache != null) {
+					try {
+						hash = hashOf(item.element.getData());
+					} catch (IOException e) {
+						throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+					}
+				}
+				inserts.add(new FileInsert(item.path, item.element, hash));
+			}
+			insertFiles(replysender, inserts, pluginContext.hlsc.getInsertContext(true).compressorDescriptor);
+			ManifestTree tree = ManifestTree.fromHashMap(manifest);
+			for (FileInsert file : inserts)
+				tree.putRedirect(file.path, file.element.getMimeTypeOverride(), file.chk, true, false);
+			manifest = tree.toHashMap();
+			int hits = cacheHits.get();
+			try {
+				FCPHandler.sendProgress(replysender, sessionID, (externals.size() - hits) + " big files inserted, " + hits + " known from the CHK cache, inserting manifest");
+			} catch (PluginNotFoundException e) {
+				// the insert goes on anyway
+			}
+		}
+		phase = "Inserting manifest";
+		return insert(pw, manifest, planner);
+	}
+
+	/**
+	 * Compare the files with the site record. Unchanged files are redirects
+	 * to the CHKs from the record. Changed files from one block up are
+	 * inserted as CHKs, a few at once, and redirected to as well; smaller
+	 * ones go into the manifest containers as they are, and are not
+	 * recorded. The record is updated once the manifest is inserted.
+	 */
+	private FreenetURI insertIncremental(PluginReplySender replysender, PutWaiter pw) throws InsertException {
+		phase = "Comparing";
+		// the record is found by the insert uri
+		if (insertURI == null)
+			throw new InsertException(InsertException.INVALID_URI, "No insert uri set, send SetInsertURI first", null);
+		SiteRecord record;
+		try {
+			record = SiteRecord.load(new File(Constants.SITE_RECORD_DIR), insertURI);
+		} catch (IOException e) {
+			throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+		}
+		final List<String> paths = new ArrayList<String>();
+		final List<ManifestElement> elements = new ArrayList<ManifestElement>();
+		synchronized (this) {
+			data.visit(new ManifestTree.Visitor() {
+				public void visit(String path, ManifestElement element) {
+					paths.add(path);
+					elements.add(element);
+				}
+			});
+		}
+		filesDone.set(0);
+		filesTotal = paths.size();
+
+		HashMap<String, SiteRecord.Entry> entries = new HashMap<String, SiteRecord.Entry>();
+		ManifestTree manifest = new ManifestTree();
+		List<FileInsert> inserts = new ArrayList<FileInsert>();
+		int unchanged = 0;
+		int inline = 0;
+		for (int i = 0; i < paths.size(); i++) {
+			checkCancelled();
+			String path = paths.get(i);
+			ManifestElement element = elements.get(i);
+			String mime = element.getMimeTypeOverride();
+			Bucket bucket = element.getData();
+			if (bucket == null) {
+				// already a redirect
+				manifest.putRedirect(path, mime, element.getTargetURI(), false, true);
+				filesDone.incrementAndGet();
+				continue;
+			}
+			String hash;
+			try {
+				hash = hashOf(bucket);
+			} catch (IOException e) {
+				throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+			}
+			SiteRecord.Entry entry = record.get(path);
+			if ((entry != null) && entry.matches(bucket.size(), hash, mime)) {
+				entries.put(path, entry);
+				manifest.putRedirect(path, mime, entry.chk, false, true);
+				unchanged++;
+			} else if (bucket.size() < INCREMENTAL_INLINE_SIZE) {
+				manifest.put(path, mime, bucket, false, true);
+				inline++;
+			} else {
+				inserts.add(new FileInsert(path, element, hash));
+			}
+			filesDone.incrementAndGet();
+		}
+
+		if (!inserts.isEmpty()) {
+			phase = "Inserting changed files";
+			insertFiles(replysender, inserts, pluginContext.hlsc.getInsertContext(true).compressorDescriptor);
+			for (FileInsert file : inserts) {
+				String mime = file.element.getMimeTypeOverride();
+				entries.put(file.path, new SiteRecord.Entry(file.element.getData().size(), file.hash, mime, file.chk));
+				manifest.putRedirect(file.path, mime, file.chk, false, true);
+			}
+		}
+		int hits = cacheHits.get();
+		if (logMINOR)
+			Logger.minor(this, "Incremental insert of " + sessionID + ": " + inserts.size() + " changed (" + hits + " cached), " + inline + " small changed, " + unchanged + " unchanged");
+		try {
+			FCPHandler.sendProgress(replysender, sessionID, (inserts.size() - hits) + " files inserted, " + hits + " known from the CHK cache, " + inline + " small files in the manifest, " + unchanged + " unchanged, inserting manifest");
+		} catch (PluginNotFoundException e) {
+			// the insert goes on anyway
+		}
+
+		phase = "Inserting manifest";
+		FreenetURI result = insert(pw, manifest.toHashMap(), null);
+		record.setEntries(entries);
+		try {
+			record.store();
+		} catch (IOException e) {
+			// the next insert is a full one then
+			Logger.error(this, "Can't store site record for " + sessionID, e);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the CHKs of the files, up to {@link #INSERT_CONCURRENCY} inserted
+	 * at once on the executor. No new insert is started after the first
+	 * error or on cancel. Progress is sent at most each progress interval.
+	 */
+	private void insertFiles(final PluginReplySender replysender, final List<FileInsert> files, final String compressor) throws InsertException {
+		filesDone.set(0);
+		filesTotal = files.size();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<InsertException> failure = new AtomicReference<InsertException>();
+		final AtomicLong lastProgress = new AtomicLong();
+		int workers = Math.min(INSERT_CONCURRENCY, files.size());
+		final CountDownLatch running = new CountDownLatch(workers);
+		Executor executor = pluginContext.clientCore.getExecutor();
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						int index;
+						while (!cancelled && (failure.get() == null) && ((index = next.getAndIncrement()) < files.size())) {
+							FileInsert file = files.get(index);
+							try {
+								file.chk = getCHK(file.element.getData(), file.hash, file.element.getMimeTypeOverride(), file.element.getName(), compressor);
+							} catch (InsertException e) {
+								failure.compareAndSet(null, e);
+								return;
+							} catch (RuntimeException e) {
+								Logger.error(this, "Insert of " + file.path + " failed", e);
+								failure.compareAndSet(null, new InsertException(InsertException.INTERNAL_ERROR, e, null));
+								return;
+							}
+							int done = filesDone.incrementAndGet();
+							long now = System.currentTimeMillis();
+							long last = lastProgress.get();
+							if ((now - last >= progressInterval) && lastProgress.compareAndSet(last, now)) {
+								try {
+									FCPHandler.sendProgress(replysender, sessionID, done + " of " + files.size() + " files inserted");
+								} catch (PluginNotFoundException e) {
+									// the insert goes on anyway
+								}
+							}
+						}
+					} finally {
+						running.countDown();
+					}
+				}
+			});
+		}
+		while (running.getCount() > 0) {
+			try {
+				running.await();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+		checkCancelled();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	/**
+	 * The CHK of a file, from the cache if its content was inserted before,
+	 * otherwise by inserting it.
+	 * @param hash content hash, may be null without a cache
+	 */
+	private FreenetURI getCHK(Bucket bucket, String hash, String mime, String fileName, String compressor) throws InsertException {
+		if (chkCache == null)
+			return insertFile(bucket, mime, fileName);
+		byte[] key = ChkCache.getKey(hash, mime, compressor);
+		FreenetURI chk = chkCache.get(key);
+		if (chk != null) {
+			cacheHits.incrementAndGet();
+			return chk;
+		}
+		chk = insertFile(bucket, mime, fileName);
+		chkCache.put(key, chk);
+		return chk;
+	}
+
+	/**
+	 * The content hash, taken when the file was scanned if it was and the
+	 * file did not change since.
+	 */
+	private String hashOf(Bucket bucket) throws IOException {
+		synchronized (this) {
+			DirectoryScanner.ScannedFile scanned = knownHashes.get(bucket);
+			if (scanned != null) {
+				if (scanned.isUnchanged())
+					return scanned.hash;
+				knownHashes.remove(bucket);
+			}
+		}
+		return SiteRecord.hash(bucket);
+	}
+
+	private void checkCancelled() throws InsertException {
+		if (cancelled)
+			throw new InsertException(InsertException.CANCELLED, "Cancelled", null);
+	}
+
+	/** insert a single file as CHK, with the default insert context */
+	private FreenetURI insertFile(Bucket data, String mime, String fileName) throws InsertException {
+		ClientMetadata cm = (mime == null) ? new ClientMetadata() : new ClientMetadata(mime);
+		InsertBlock block = new InsertBlock(data, cm, FreenetURI.EMPTY_CHK_URI);
+		PutWaiter pw = new PutWaiter();
+		ClientPutter putter = pluginContext.hlsc.insert(block, false, fileName, false, pluginContext.hlsc.getInsertContext(true), pw);
+		synchronized (this) {
+			fileInserts.add(putter);
+		}
+		try {
+			// cancel() may have missed it
+			if (cancelled)
+				putter.cancel(null, pluginContext.clientCore.clientContext);
+			return pw.waitForCompletion();
+		} finally {
+			synchronized (this) {
+				fileInserts.remove(putter);
+			}
+		}
+	}
+
+	/** @param planner packs the containers, null to leave it to DefaultManifestPutter */
+	private FreenetURI insert(PutWaiter pw, HashMap<String, Object> manifest, ContainerPlanner planner) throws InsertException {
 		RequestClient rc = new RequestClient() {
 			public boolean persistent() {
 				return false;
@@ -144,43 +916,42 @@ public class SiteEditSession extends AbstractSiteToolSession {
 		};
 		InsertContext iCtx = pluginContext.hlsc.getInsertContext(true);
 		iCtx.compressorDescriptor = "LZMA_NEW";
-		DefaultManifestPutter dmp = new DefaultManifestPutter(pw, data, (short) 1, insertURI, "index.html", iCtx, false, rc, false, false, null, pluginContext.clientCore.clientContext);
+		BaseManifestPutter dmp;
+		if (planner != null)
+			dmp = new PlannedManifestPutter(planner, pw, manifest, (short) 1, insertURI, ContainerPlanner.DEFAULT_NAME, iCtx, false, rc, false, false, null, pluginContext.clientCore.clientContext);
+		else
+			dmp = new DefaultManifestPutter(pw, manifest, (short) 1, insertURI, ContainerPlanner.DEFAULT_NAME, iCtx, false, rc, false, false, null, pluginContext.clientCore.clientContext);
 		if (pw instanceof VerboseWaiter) {
 			iCtx.eventProducer.addEventListener((VerboseWaiter)pw);
 			((VerboseWaiter) pw).setPutter(dmp);
 		}
-		try {
-			pluginContext.clientCore.clientContext.start(dmp);
-		} catch (DatabaseDisabledException e) {
-			// Impossible
+		synchronized (this) {
+			currentPutter = dmp;
 		}
-		FreenetURI result = pw.waitForCompletion();
-		if (pw instanceof VerboseWaiter) {
-			iCtx.eventProducer.removeEventListener((VerboseWaiter)pw);
+		try {
+			checkCancelled();
+			try {
+				pluginContext.clientCore.clientContext.start(dmp);
+			} catch (DatabaseDisabledException e) {
+				// Impossible
+			}
+			return pw.waitForCompletion();
+		} finally {
+			synchronized (this) {
+				currentPutter = null;
+			}
+			if (pw instanceof VerboseWaiter) {
+				iCtx.eventProducer.removeEventListener((VerboseWaiter)pw);
+			}
 		}
-		return result;
 	}
 
 	private synchronized boolean addItem(PluginReplySender replysender, String identifier, String name, String mimeOverride, Bucket item, boolean overwrite, boolean createpath) throws PluginNotFoundException {
-		int i = name.lastIndexOf("/");
-		String dirName;
-		String itemName;
-		HashMap<String, Object> parent;
-		if (i > -1) {
-			dirName = name.substring(0, i);
-			itemName = name.substring(i+1);
-			parent = findDir(data, dirName, createpath);
-		} else {
-			dirName = null;
-			itemName = name;
-			parent = data;
-		}
-
-		if ((!overwrite) && (parent.containsKey(name))) {
-			AbstractFCPHandler.sendError(replysender, 200, identifier, "Duplicate item: "+name);
+		String error = putItem(name, mimeOverride, item, overwrite, createpath);
+		if (error != null) {
+			AbstractFCPHandler.sendError(replysender, 200, identifier, error);
 			return false;
 		}
-		parent.put(itemName, new ManifestElement(itemName, item, mimeOverride, item.size()));
 		SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Status", "FileAdded");
 		sfs.put("Code", 0);
@@ -190,23 +961,19 @@ public class SiteEditSession extends AbstractSiteToolSession {
 		return true;
 	}
 
-	@SuppressWarnings("unchecked")
-	private HashMap<String, Object> findDir(HashMap<String, Object> parent, String name, boolean create) {
-		String[] s = name.split("/", 2); 
-		Object o = parent.get(s[0]);
-		if (o == null) { // not found
-			if (create) {
-				o = new HashMap<String, Object>();
-				parent.put(s[0], o);
-			} else return null;
-		}
-		if (o instanceof HashMap) {
-			if (s.length == 2) {
-				return findDir((HashMap<String, Object>)o, s[1], create);
-			}
-			return (HashMap<String, Object>)o;
+	/**
+	 * Call with the lock held.
+	 * @return null on success, the error description otherwise
+	 */
+	private String putItem(String name, String mimeOverride, Bucket item, boolean overwrite, boolean createpath) {
+		Object old = data.get(name);
+		String error = data.put(name, mimeOverride, item, overwrite, createpath);
+		if ((error == null) && (old instanceof ManifestElement)) {
+			// the hash of a replaced file must not be used for its path
+			Bucket oldData = ((ManifestElement) old).getData();
+			if (oldData != null)
+				knownHashes.remove(oldData);
 		}
-		// not a dir FIXME
-		return null;
+		return error;
 	}
 }
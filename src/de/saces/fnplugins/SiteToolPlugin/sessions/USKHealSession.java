@@ -1,86 +1,369 @@
 package de.saces.fnplugins.SiteToolPlugin.sessions;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.db4o.ObjectContainer;
+
+import de.saces.fnplugins.SiteToolPlugin.Constants;
+import de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport.DownloadJournal;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchWaiter;
+import freenet.client.HighLevelSimpleClient;
 import freenet.client.InsertException;
+import freenet.client.Metadata;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientGetter;
+import freenet.client.async.SnoopMetadata;
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
 import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
 import freenet.keys.InsertableUSK;
-import freenet.pluginmanager.PluginNotFoundException;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
 import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
-import freenet.support.api.Bucket;
 import freenet.support.plugins.helpers1.PluginContext;
 
 public class USKHealSession extends AbstractSiteToolSession {
 
+	public static final String TYPE = "USKHeal";
+
+	public static final int DEFAULT_CONCURRENCY = 1;
+	public static final int MAX_CONCURRENCY = 32;
+
+	public enum HealResult { HEALED, COLLISION, ERROR, REACHABLE };
+
+	/** checks if an edition can be fetched, without inserting anything */
+	public interface EditionProbe {
+		boolean isReachable(FreenetURI editionURI);
+	}
+
+	/**
+	 * Answers from a set of reachable editions, without the network. A
+	 * stand-in for tests.
+	 */
+	public static class MemoryProbe implements EditionProbe {
+
+		private final Set<FreenetURI> _reachable;
+
+		public MemoryProbe(Collection<FreenetURI> reachable) {
+			_reachable = new HashSet<FreenetURI>(reachable);
+		}
+
+		public boolean isReachable(FreenetURI editionURI) {
+			return _reachable.contains(editionURI);
+		}
+	}
+
+	/**
+	 * Probes by fetching the edition's SSK from the network (not the local
+	 * store) and stopping at its metadata.
+	 */
+	public static class NetworkProbe implements EditionProbe {
+
+		private final HighLevelSimpleClient _hlsc;
+		private final ClientContext _clientContext;
+
+		public NetworkProbe(HighLevelSimpleClient hlsc, ClientContext clientContext) {
+			_hlsc = hlsc;
+			_clientContext = clientContext;
+		}
+
+		public boolean isReachable(FreenetURI editionURI) {
+			FetchContext context = _hlsc.getFetchContext();
+			// the edition is always found in our own store after an insert
+			context.ignoreStore = true;
+			context.maxNonSplitfileRetries = 1;
+			final boolean[] seen = new boolean[] { false };
+			FetchWaiter fw = new FetchWaiter();
+			ClientGetter get = new ClientGetter(fw, editionURI, context, RequestStarter.INTERACTIVE_PRIORITY_CLASS, (RequestClient)_hlsc, null, null);
+			get.setMetaSnoop(new SnoopMetadata() {
+				public boolean snoopMetadata(Metadata meta, ObjectContainer container, ClientContext clientContext) {
+					// the redirect is there, no need to follow it
+					seen[0] = true;
+					return true;
+				}
+			});
+			try {
+				get.start(null, _clientContext);
+				fw.waitForCompletion();
+				return true;
+			} catch (FetchException e) {
+				return seen[0];
+			}
+		}
+	}
+
 	private final FreenetURI _startURI;
 
-	private final StringBuilder status;
+	// guards the counters below
+	private final Object counters = new Object();
+
+	private final SessionLog log;
 
 	private final PluginContext pCtx;
 
+	private final int _concurrency;
+
+	private final EditionProbe _probe;
+
+	private volatile boolean _cancelled;
+
+	// the probe and insert of an edition, new for each run
+	private volatile EditionHealer _healer;
+
+	private int healed;
+	private int collisions;
+	private int errors;
+	private int editionsTotal;
+	private int reachable;
+	private String phase = "Idle";
+
+	// editions are walked downwards, all down to this one are done
+	private long resumeEdition;
+	private boolean[] editionDone;
+	private int editionsDoneUpTo;
+
 	public USKHealSession(String identifier, FreenetURI furi, PluginContext pluginContext) {
+		this(identifier, furi, pluginContext, DEFAULT_CONCURRENCY, null);
+	}
+
+	/**
+	 * @param concurrency number of editions inserted at once, 1 heals one
+	 * edition after the other
+	 * @param probe if not null only editions failing the probe are inserted
+	 */
+	public USKHealSession(String identifier, FreenetURI furi, PluginContext pluginContext, int concurrency, EditionProbe probe) {
 		super(identifier);
 		_startURI = furi;
 		pCtx = pluginContext;
-		status = new StringBuilder();
+		_concurrency = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+		_probe = probe;
+		log = new SessionLog(new File(Constants.HEAL_LOG_DIR, DownloadJournal.hash(identifier) + ".log"), SessionLog.DEFAULT_CAPACITY);
+	}
+
+	/** recreate a stored session, a network probe is used if it had one */
+	public static USKHealSession restore(String identifier, SimpleFieldSet descriptor, PluginContext pluginContext) throws MalformedURLException {
+		FreenetURI uri = new FreenetURI(descriptor.get("URI"));
+		int concurrency = descriptor.getInt("Concurrency", DEFAULT_CONCURRENCY);
+		EditionProbe probe = null;
+		if (descriptor.getBoolean("Probe", false))
+			probe = new NetworkProbe(pluginContext.hlsc, pluginContext.clientCore.clientContext);
+		return new USKHealSession(identifier, uri, pluginContext, concurrency, probe);
+	}
+
+	@Override
+	public SimpleFieldSet getDescriptor() {
+		SimpleFieldSet sfs = new SimpleFieldSet(false);
+		sfs.putSingle("Type", TYPE);
+		// the insert uri, like the site configs do
+		sfs.putSingle("URI", _startURI.toString(false, false));
+		sfs.put("Concurrency", _concurrency);
+		sfs.put("Probe", _probe != null);
+		return sfs;
+	}
+
+	@Override
+	public SimpleFieldSet getCheckpoint() {
+		synchronized (counters) {
+			if (resumeEdition < 1)
+				return null;
+			SimpleFieldSet sfs = new SimpleFieldSet(false);
+			sfs.put("ResumeEdition", resumeEdition);
+			return sfs;
+		}
+	}
+
+	@Override
+	public void restoreCheckpoint(SimpleFieldSet checkpoint) {
+		synchronized (counters) {
+			resumeEdition = checkpoint.getLong("ResumeEdition", 0);
+		}
 	}
 
 	@Override
 	public void cancel() {
-		// TODO Auto-generated method stub
-		
+		// running inserts are finished, no new ones are started
+		_cancelled = true;
 	}
 
 	@Override
 	public void destroySession() {
-		// TODO Auto-generated method stub
-		
+		log.close();
+	}
+
+	@Override
+	public void purge() {
+		log.delete();
+	}
+
+	@Override
+	public long getResultSize() {
+		return log.haveFile() ? log.getFileSize() : 0;
 	}
 
 	@Override
 	public void execute(PluginReplySender replysender) {
-		status.append("starting\n");
+		_cancelled = false;
+		synchronized (counters) {
+			healed = 0;
+			collisions = 0;
+			errors = 0;
+			reachable = 0;
+			phase = "Computing editions";
+		}
+		_healer = new EditionHealer(_probe, new EditionHealer.Inserter() {
+			public void insertRedirect(FreenetURI insertURI, FreenetURI targetURI) throws InsertException {
+				pCtx.hlsc.insertRedirect(insertURI, targetURI);
+			}
+		});
+		appendStatus("starting");
 		InsertableUSK iUSK = null;
 		FreenetURI targetURI;
 		try {
 			iUSK = InsertableUSK.createInsertable(_startURI, false);
 			targetURI = iUSK.getUSK().getURI().sskForUSK().setMetaString(new String[] { "" });
-			status.append("Target: "+targetURI.toString(false, false));
-			status.append('\n');
+			appendStatus("Target: "+targetURI.toString(false, false));
 		} catch (MalformedURLException e) {
 			Logger.error(this, "DEBUG", e);
 			setError(e);
 			return;
 		}
 
-		long edition = _startURI.getSuggestedEdition();
-
+		List<Long> editions = new ArrayList<Long>();
+		long edition;
+		synchronized (counters) {
+			edition = resumeEdition;
+		}
+		if (edition > 0)
+			appendStatus("Resuming below edition " + edition);
+		else
+			edition = _startURI.getSuggestedEdition();
 		while (edition > 0) {
-			long newEdition = getNextEdition(edition);
-			FreenetURI testUri = iUSK.getInsertableSSK(newEdition).getInsertURI();
-			try {
-				status.append("Healing edition: ");
-				status.append(newEdition);
-				status.append(' ');
-				pCtx.hlsc.insertRedirect(testUri, targetURI);
-				status.append("- healed\n");
-			} catch (InsertException e) {
-				if (e.getMode() == InsertException.COLLISION) {
-					status.append("- was ok\n");
-				} else {
-					status.append("- Error: ");
-					status.append(e.getLocalizedMessage());
-					status.append('\n');
-					Logger.error(this, "Pfehler", e);
+			edition = getNextEdition(edition);
+			editions.add(edition);
+		}
+		synchronized (counters) {
+			phase = "Healing";
+			editionsTotal = editions.size();
+			editionDone = new boolean[editions.size()];
+			editionsDoneUpTo = 0;
+		}
+
+		if (_concurrency < 2) {
+			for (int i = 0; i < editions.size(); i++) {
+				if (_cancelled)
+					break;
+				healEdition(iUSK, targetURI, editions, i);
+			}
+		} else {
+			appendStatus("Healing " + editions.size() + " editions, " + _concurrency + " at once");
+			healParallel(iUSK, targetURI, editions);
+		}
+		synchronized (counters) {
+			if (!_cancelled)
+				resumeEdition = 0;
+			phase = _cancelled ? "Cancelled" : "Done";
+		}
+		appendStatus(_cancelled ? "cancelled" : "done");
+	}
+
+	private void healParallel(final InsertableUSK iUSK, final FreenetURI targetURI, final List<Long> editions) {
+		final AtomicInteger next = new AtomicInteger();
+		int workers = Math.min(_concurrency, editions.size());
+		final CountDownLatch running = new CountDownLatch(workers);
+		Executor executor = pCtx.clientCore.getExecutor();
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						int index;
+						while (!_cancelled && ((index = next.getAndIncrement()) < editions.size())) {
+							healEdition(iUSK, targetURI, editions, index);
+						}
+					} finally {
+						running.countDown();
+					}
 				}
+			});
+		}
+		while (running.getCount() > 0) {
+			try {
+				running.await();
+			} catch (InterruptedException e) {
+				// Ignore
 			}
-			edition = newEdition;
 		}
 	}
 
+	private HealResult healEdition(InsertableUSK iUSK, FreenetURI targetURI, List<Long> editions, int index) {
+		long edition = editions.get(index);
+		InsertableClientSSK editionSSK = iUSK.getInsertableSSK(edition);
+		HealResult result;
+		String error = null;
+		try {
+			result = _healer.heal(editionSSK.getURI(), editionSSK.getInsertURI(), targetURI);
+		} catch (InsertException e) {
+			result = HealResult.ERROR;
+			error = e.getLocalizedMessage();
+			Logger.error(this, "Pfehler", e);
+		}
+		StringBuilder line = new StringBuilder();
+		line.append("Healing edition: ");
+		line.append(edition);
+		line.append(' ');
+		boolean advanced;
+		synchronized (counters) {
+			switch (result) {
+			case REACHABLE:
+				reachable++;
+				line.append("- reachable, skipped");
+				break;
+			case HEALED:
+				healed++;
+				line.append("- healed");
+				break;
+			case COLLISION:
+				collisions++;
+				line.append("- was ok");
+				break;
+			default:
+				errors++;
+				line.append("- Error: ");
+				line.append(error);
+			}
+			editionDone[index] = true;
+			while ((editionsDoneUpTo < editionDone.length) && editionDone[editionsDoneUpTo])
+				editionsDoneUpTo++;
+			advanced = (editionsDoneUpTo > 0) && (resumeEdition != editions.get(editionsDoneUpTo - 1));
+			if (advanced)
+				resumeEdition = editions.get(editionsDoneUpTo - 1);
+		}
+		log.append(line.toString());
+		if (advanced)
+			checkpoint();
+		return result;
+	}
+
+	private void appendStatus(String line) {
+		log.append(line);
+	}
+
 	long getNextEdition(long oldEdition) {
 		if (oldEdition < 1) throw new IllegalStateException();
 		long neu = oldEdition-(2+pCtx.clientCore.random.nextInt(2));
@@ -88,15 +371,29 @@ public class USKHealSession extends AbstractSiteToolSession {
 	}
 
 	@Override
-	public void getExtraStatusPanel(HTMLNode node) {
-		node.addChild("pre", status.toString());
+	protected void fillProgress(SessionProgress progress) {
+		synchronized (counters) {
+			progress.setPhase(phase);
+			progress.setItems(editionsTotal, healed + collisions + reachable, errors);
+		}
 	}
 
 	@Override
-	public void handleFCP(PluginReplySender replysender, String command, SimpleFieldSet params,
-			Bucket data, int accesstype) throws PluginNotFoundException {
-		// TODO Auto-generated method stub
-		
+	public void getExtraStatusPanel(HTMLNode node) {
+		synchronized (counters) {
+			node.addChild("#", "Editions: " + editionsTotal + ", healed: " + healed + ", were ok: " + collisions + ", errors: " + errors);
+			EditionHealer healer = _healer;
+			if ((healer != null) && (healer.getProbed() > 0)) {
+				node.addChild("br");
+				node.addChild("#", "Probed: " + healer.getProbed() + ", reachable: " + healer.getReachable() + " (" + healer.getHitRate() + "% hit rate)");
+			}
+		}
+		long lines = log.getLineCount();
+		if (lines > SessionLog.DEFAULT_CAPACITY) {
+			node.addChild("br");
+			node.addChild("#", "Last " + SessionLog.DEFAULT_CAPACITY + " of " + lines + " log lines, grab the result for the full log.");
+		}
+		node.addChild("pre", log.getRecent());
 	}
 
 	@Override
@@ -104,4 +401,14 @@ public class USKHealSession extends AbstractSiteToolSession {
 		return true;
 	}
 
+	@Override
+	public void sendResult(ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		log.send(ctx, "uskheal.log");
+	}
+
+	@Override
+	public boolean haveResult() {
+		return log.haveFile();
+	}
+
 }
@@ -35,6 +35,8 @@ public class HomeToadlet extends WebInterfaceToadlet {
 
 	private final static String PARAM_URI = "key";
 	private final static String PARAM_TYPE = "archivetype";
+	private final static String PARAM_HEALTHREADS = "healthreads";
+	private final static String PARAM_HEALPROBE = "healprobe";
 
 	private final SessionManager sessionMgr;
 
@@ -99,7 +101,7 @@ public class HomeToadlet extends WebInterfaceToadlet {
 			if (Constants.DL_TYPE_TAR7Z.equals(archiveType)) {
 				mime = "application/x-lzma-compressed-tar";
 				ext = "tar.lzma";
-			} else if (Constants.DL_TYPE_TARGZ.equals(archiveType)) {
+			} else if (Constants.DL_TYPE_TARGZ.equals(archiveType) || Constants.DL_TYPE_TARGZ_PARALLEL.equals(archiveType)) {
 				mime = "application/x-gtar";
 				ext = "tar.gz";	
 			} else if (Constants.DL_TYPE_TAR.equals(archiveType)) {
@@ -139,6 +141,17 @@ public class HomeToadlet extends WebInterfaceToadlet {
 		if (request.isPartSet(CMD_USKFASTHEAL) || request.isPartSet(CMD_USKFULLHEAL)) {
 			boolean fastHeal = request.isPartSet(CMD_USKFASTHEAL);
 			FreenetURI furi = null;
+			int concurrency = USKHealSession.DEFAULT_CONCURRENCY;
+			String threads = request.getPartAsString(PARAM_HEALTHREADS, 8).trim();
+			if (threads.length() > 0) {
+				try {
+					concurrency = Integer.parseInt(threads);
+					if ((concurrency < 1) || (concurrency > USKHealSession.MAX_CONCURRENCY))
+						errors.add("Parallel inserts must be between 1 and " + USKHealSession.MAX_CONCURRENCY);
+				} catch (NumberFormatException e) {
+					errors.add("Parallel inserts is not a number: " + threads);
+				}
+			}
 			try {
 				furi = new FreenetURI(key);
 				if (!furi.isUSK() && !furi.isSSKForUSK()) {
@@ -164,7 +177,10 @@ public class HomeToadlet extends WebInterfaceToadlet {
 			}
 
 			String sessionid = furi.toString(false, false);
-			USKHealSession session = new USKHealSession(sessionid, furi, pluginContext);
+			USKHealSession.EditionProbe probe = null;
+			if (request.isPartSet(PARAM_HEALPROBE))
+				probe = new USKHealSession.NetworkProbe(pluginContext.hlsc, pluginContext.clientCore.clientContext);
+			USKHealSession session = new USKHealSession(sessionid, furi, pluginContext, concurrency, probe);
 			try {
 				sessionMgr.addSession(session);
 				sessionMgr.startSession(null, sessionid);
@@ -243,6 +259,11 @@ public class HomeToadlet extends WebInterfaceToadlet {
 		else	
 			box11Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "radio", PARAM_TYPE, Constants.DL_TYPE_TARGZ }, "tar.gz");
 		box11Form.addChild("#", "\u00a0");
+		if (isCommand(what, CMD_SITEDOWNLOAD) && defaulttype.equals(Constants.DL_TYPE_TARGZ_PARALLEL))
+			box11Form.addChild("input", new String[] { "type", "name", "value", "checked" }, new String[] { "radio", PARAM_TYPE, Constants.DL_TYPE_TARGZ_PARALLEL, "checked" }, "tar.gz (multi-threaded)");
+		else	
+			box11Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "radio", PARAM_TYPE, Constants.DL_TYPE_TARGZ_PARALLEL }, "tar.gz (multi-threaded)");
+		box11Form.addChild("#", "\u00a0");
 		if (isCommand(what, CMD_SITEDOWNLOAD) && defaulttype.equals(Constants.DL_TYPE_TAR))
 			box11Form.addChild("input", new String[] { "type", "name", "value", "checked" }, new String[] { "radio", PARAM_TYPE, Constants.DL_TYPE_TAR, "checked" }, "tar");
 		else
@@ -293,6 +314,11 @@ public class HomeToadlet extends WebInterfaceToadlet {
 			box21Form.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", PARAM_URI, "70", uri });
 		else
 			box21Form.addChild("input", new String[] { "type", "name", "size" }, new String[] { "text", PARAM_URI, "70" });
+		box21Form.addChild("br");
+		box21Form.addChild("#", "Parallel inserts: \u00a0 ");
+		box21Form.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", PARAM_HEALTHREADS, "3", Integer.toString(USKHealSession.DEFAULT_CONCURRENCY) });
+		box21Form.addChild("#", "\u00a0");
+		box21Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "checkbox", PARAM_HEALPROBE, "true" }, "Probe first, only insert editions not reachable");
 		box21Form.addChild("#", "\u00a0");
 		box21Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", CMD_USKFULLHEAL, "Full Heal" });
 		box21Form.addChild("#", "\u00a0");
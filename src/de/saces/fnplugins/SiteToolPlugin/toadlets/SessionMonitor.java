@@ -0,0 +1,190 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import de.saces.fnplugins.SiteToolPlugin.SessionManager;
+import de.saces.fnplugins.SiteToolPlugin.sessions.AbstractSiteToolSession;
+import de.saces.fnplugins.SiteToolPlugin.sessions.SessionProgress;
+
+/**
+ * Change counter over the progress of all sessions, for the long poll of
+ * the live session page. Sessions are sampled at most once per interval;
+ * each session whose progress looks different since the last sample gets
+ * the next version number. A poll for 'since' returns the sessions with a
+ * newer version and the ones removed meanwhile, as JSON.
+ */
+class SessionMonitor {
+
+	private static final long SAMPLE_INTERVAL = 1000;
+	// removed sessions remembered, older polls get a full update
+	private static final int MAX_REMOVED = 256;
+
+	private static class Entry {
+		long version;
+		String json;
+	}
+
+	private final SessionManager _sessionMgr;
+	private final HashMap<String, Entry> _entries;
+	private final HashMap<String, Long> _removed;
+	private long _version;
+	// versions up to this are not fully known any more
+	private long _forgottenVersion;
+	private long _lastSample;
+
+	SessionMonitor(SessionManager sessionManager) {
+		_sessionMgr = sessionManager;
+		_entries = new HashMap<String, Entry>();
+		_removed = new HashMap<String, Long>();
+	}
+
+	/**
+	 * Wait until something changed after 'since' or the timeout is over.
+	 * @return the delta as JSON object, with 'version' as next 'since'
+	 */
+	synchronized String poll(long since, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if ((now - _lastSample) >= SAMPLE_INTERVAL)
+				sample(now);
+			if ((_version > since) || (now >= deadline))
+				return delta(since);
+			try {
+				wait(Math.min(SAMPLE_INTERVAL, deadline - now));
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void sample(long now) {
+		_lastSample = now;
+		Set<String> seen = new HashSet<String>();
+		for (String id : _sessionMgr.getSessionNames()) {
+			AbstractSiteToolSession session = _sessionMgr.getSession(id);
+			if (session == null)
+				continue;
+			seen.add(id);
+			String json = toJSON(session);
+			Entry entry = _entries.get(id);
+			if (entry == null) {
+				entry = new Entry();
+				_entries.put(id, entry);
+				_removed.remove(id);
+			} else if (entry.json.equals(json)) {
+				continue;
+			}
+			entry.json = json;
+			entry.version = ++_version;
+		}
+		Iterator<String> it = _entries.keySet().iterator();
+		while (it.hasNext()) {
+			String id = it.next();
+			if (!seen.contains(id)) {
+				it.remove();
+				_removed.put(id, ++_version);
+			}
+		}
+		if (_removed.size() > MAX_REMOVED) {
+			// forget the oldest half
+			long[] versions = new long[_removed.size()];
+			int i = 0;
+			for (long v : _removed.values())
+				versions[i++] = v;
+			java.util.Arrays.sort(versions);
+			long limit = versions[versions.length / 2];
+			Iterator<Long> vit = _removed.values().iterator();
+			while (vit.hasNext()) {
+				if (vit.next() <= limit)
+					vit.remove();
+			}
+			_forgottenVersion = Math.max(_forgottenVersion, limit);
+		}
+	}
+
+	private String delta(long since) {
+		// a client that missed forgotten removals starts over
+		boolean full = (since <= 0) || (since < _forgottenVersion) || (since > _version);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"version\":").append(_version);
+		sb.append(",\"full\":").append(full);
+		sb.append(",\"sessions\":[");
+		boolean first = true;
+		for (Entry entry : _entries.values()) {
+			if (!full && (entry.version <= since))
+				continue;
+			if (!first)
+				sb.append(',');
+			sb.append(entry.json);
+			first = false;
+		}
+		sb.append("],\"removed\":[");
+		first = true;
+		if (!full) {
+			for (Map.Entry<String, Long> removed : _removed.entrySet()) {
+				if (removed.getValue() <= since)
+					continue;
+				if (!first)
+					sb.append(',');
+				appendString(sb, removed.getKey());
+				first = false;
+			}
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private static String toJSON(AbstractSiteToolSession session) {
+		SessionProgress progress = session.getProgress();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"id\":");
+		appendString(sb, session.getSessionID());
+		sb.append(",\"type\":");
+		appendString(sb, session.getType());
+		sb.append(",\"status\":");
+		appendString(sb, progress.getStatus().name());
+		if (progress.getPhase() != null) {
+			sb.append(",\"phase\":");
+			appendString(sb, progress.getPhase());
+		}
+		sb.append(",\"itemsTotal\":").append(progress.getItemsTotal());
+		sb.append(",\"itemsDone\":").append(progress.getItemsDone());
+		sb.append(",\"itemsFailed\":").append(progress.getItemsFailed());
+		sb.append(",\"bytesFetched\":").append(progress.getBytesFetched());
+		sb.append(",\"bytesWritten\":").append(progress.getBytesWritten());
+		// seconds, so the rate and ETA don't change on every sample
+		double rate = progress.getRate();
+		sb.append(",\"rate\":").append((rate < 0) ? -1 : (Math.round(rate * 10) / 10.0));
+		long eta = progress.getETA();
+		sb.append(",\"eta\":").append((eta < 0) ? -1 : (eta / 1000));
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if ((c < 0x20) || (c == '<') || (c == '>') || (c == '&')) {
+					// also keeps the reply harmless if rendered as html
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+}
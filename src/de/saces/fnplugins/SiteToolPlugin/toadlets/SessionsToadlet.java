@@ -28,11 +28,20 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 	private static final String CMD_REMOVE = "remove";
 	private static final String CMD_GRAB = "grab";
 
+	private static final String PATH_LIVE = "/live";
+	private static final String PATH_POLL = "/poll";
+	private static final String PARAM_SINCE = "since";
+
+	// a poll is answered after this, even if nothing changed
+	private static final long POLL_TIMEOUT = 15 * 1000;
+
 	private final SessionManager sessionMgr;
+	private final SessionMonitor monitor;
 
 	public SessionsToadlet(PluginContext stCtx, SessionManager sessionManager) {
 		super(stCtx, SiteToolPlugin.PLUGIN_URI, "Sessions");
 		sessionMgr = sessionManager;
+		monitor = new SessionMonitor(sessionManager);
 	}
 
 	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -43,6 +52,17 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 			return;
 		}
 
+		if (path.equals(PATH_LIVE)) {
+			makeLivePage(ctx);
+			return;
+		}
+
+		if (path.equals(PATH_POLL)) {
+			long since = req.getLongParam(PARAM_SINCE, 0);
+			writeReply(ctx, 200, "application/json", "OK", monitor.poll(since, POLL_TIMEOUT));
+			return;
+		}
+
 		writeTemporaryRedirect(ctx, "Found elsewhere", path());
 	}
 
@@ -61,13 +81,19 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 		}
 		String sessionid = request.getPartAsString(PARAM_SESSIONID, 1024);
 		AbstractSiteToolSession session = sessionMgr.getSession(sessionid);
+		if (session == null) {
+			// removed by someone else meanwhile
+			writeTemporaryRedirect(ctx, "Found elsewhere", path());
+			return;
+		}
 		if (request.isPartSet(CMD_START)) {
-			session.startSession(null, pluginContext.clientCore.getExecutor());
+			sessionMgr.startSession(null, sessionid);
 		} else if (request.isPartSet(CMD_CANCEL)) {
-			session.cancelSession(pluginContext.clientCore.getExecutor());
+			sessionMgr.cancelSession(sessionid);
 		} else if (request.isPartSet(CMD_REMOVE)) {
 			sessionMgr.removeSession(sessionid);
 		} else if (request.isPartSet(CMD_GRAB)) {
+			session.touch();
 			session.sendResult(ctx);
 			return;
 		} else {
@@ -82,11 +108,62 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 		PageNode pageNode = pluginContext.pageMaker.getPageNode("Site Tool Plugin", ctx);
 		HTMLNode outer = pageNode.outer;
 		HTMLNode contentNode = pageNode.content;
+		contentNode.addChild("a", "href", path() + PATH_LIVE, "Live view");
 		contentNode.addChild(createSessionsBox());
 		
 		writeHTMLReply(ctx, 200, "OK", outer.generate());
 	}
 
+	/**
+	 * a table of all sessions, kept up to date by long polling PATH_POLL for
+	 * the sessions changed since the last reply
+	 */
+	private void makeLivePage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		PageNode pageNode = pluginContext.pageMaker.getPageNode("Site Tool Plugin", ctx);
+		HTMLNode outer = pageNode.outer;
+		HTMLNode contentNode = pageNode.content;
+
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Sessions (live)");
+		HTMLNode liveContent = box.content;
+		liveContent.addChild("a", "href", path(), "Manage sessions");
+		HTMLNode table = liveContent.addChild("table", "id", "sessions");
+		HTMLNode header = table.addChild("tr");
+		for (String title : new String[] { "Session", "Type", "Status", "Phase", "Items", "Failed", "Fetched", "Written", "Rate", "Time left" }) {
+			header.addChild("th", title);
+		}
+		liveContent.addChild("noscript").addChild("#", "The live view needs JavaScript, use the session page instead.");
+		liveContent.addChild("%", "<script type=\"text/javascript\">" + liveScript(path() + PATH_POLL) + "</script>");
+		contentNode.addChild(box.outer);
+
+		writeHTMLReply(ctx, 200, "OK", outer.generate());
+	}
+
+	private static String liveScript(String pollPath) {
+		return
+			"(function(){" +
+			"var since=0,rows={},table=document.getElementById('sessions');" +
+			"function size(b){if(b<0)return '';var u=['B','KiB','MiB','GiB','TiB'],i=0;" +
+				"while(b>=1024&&i<u.length-1){b/=1024;i++;}return (Math.round(b*10)/10)+' '+u[i];}" +
+			"function num(n){return (n<0)?'':String(n);}" +
+			"function cells(s){var items=num(s.itemsDone);if(s.itemsTotal>=0)items+=' / '+s.itemsTotal;" +
+				"return [s.id,s.type,s.status,s.phase||'',items,num(s.itemsFailed),size(s.bytesFetched)," +
+				"size(s.bytesWritten),(s.rate<0)?'':s.rate+'/s',(s.eta<0)?'':s.eta+'s'];}" +
+			"function update(s){var row=rows[s.id];if(!row){row=table.insertRow(-1);rows[s.id]=row;" +
+				"for(var i=0;i<10;i++)row.insertCell(-1);}" +
+				"var c=cells(s);for(var i=0;i<c.length;i++){row.cells[i].textContent=c[i];}}" +
+			"function drop(id){var row=rows[id];if(row){table.deleteRow(row.rowIndex);delete rows[id];}}" +
+			"function apply(d){if(d.full){for(var id in rows)drop(id);}" +
+				"for(var i=0;i<d.sessions.length;i++)update(d.sessions[i]);" +
+				"for(var i=0;i<d.removed.length;i++)drop(d.removed[i]);since=d.version;}" +
+			"function poll(){var x=new XMLHttpRequest();" +
+				"x.open('GET','" + pollPath + "?" + PARAM_SINCE + "='+since,true);" +
+				"x.onreadystatechange=function(){if(x.readyState!=4)return;" +
+				"if(x.status==200){apply(JSON.parse(x.responseText));poll();}else{setTimeout(poll,5000);}};" +
+				"x.send(null);}" +
+			"poll();" +
+			"})();";
+	}
+
 	private HTMLNode createSessionsBox() {
 		InfoboxNode box = pluginContext.pageMaker.getInfobox("Sessions");
 		HTMLNode browseBox = box.outer;
@@ -132,7 +209,8 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 			kill9Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", CMD_START, "Start" });
 			kill9Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", CMD_REMOVE, "Remove" });
 		} else if (status == SessionStatus.WAITING) {
-			statusstring = "Started/Waiting";
+			int pos = sessionMgr.getScheduler().getQueuePosition(session);
+			statusstring = (pos > 0) ? ("Started/Waiting (queue position " + pos + ")") : "Started/Waiting";
 			kill9Form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", CMD_CANCEL, "Cancel" });
 		} else if (status == SessionStatus.RUNNING) {
 			statusstring = "Running";
@@ -163,6 +241,7 @@ public class SessionsToadlet extends WebInterfaceToadlet {
 		HTMLNode extraBox = box2.outer;
 		HTMLNode extraContent = box2.content;
 
+		session.getProgress().render(extraContent);
 		if (status == SessionStatus.ERROR) {
 			extraContent.addChild("#", session.getLastError().getLocalizedMessage());
 		} else {
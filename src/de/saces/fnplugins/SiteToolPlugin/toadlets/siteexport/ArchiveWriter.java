@@ -0,0 +1,200 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+
+/**
+ * Decouples the fetch callbacks from the archive output. Completed items
+ * are queued and written by a single consumer ({@link #writeAll()}), so
+ * fetch threads never block on archive I/O and entries can't interleave.
+ *
+ * As {@link FetchScheduler.Throttle} it holds back new fetches while the
+ * queued data exceeds the budget.
+ */
+public class ArchiveWriter implements ISiteParserCallback, FetchScheduler.Throttle {
+
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 32L * 1024 * 1024;
+	public static final int DEFAULT_MAX_QUEUED_ITEMS = 64;
+
+	private static class Item {
+		final String name;
+		final Bucket data;
+		final String report;
+		final String linkTarget;
+		final boolean last;
+
+		Item(String name, Bucket data, String report, String linkTarget, boolean last) {
+			this.name = name;
+			this.data = data;
+			this.report = report;
+			this.linkTarget = linkTarget;
+			this.last = last;
+		}
+	}
+
+	private final ISiteParserCallback _target;
+	private final long _maxQueuedBytes;
+	private final int _maxQueuedItems;
+	private final LinkedList<Item> _queue;
+	private long _queuedBytes;
+	private int _queuedItems;
+	private long _writtenBytes;
+	private boolean _closed;
+	private Runnable _drainListener;
+
+	public ArchiveWriter(ISiteParserCallback target) {
+		this(target, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_MAX_QUEUED_ITEMS);
+	}
+
+	public ArchiveWriter(ISiteParserCallback target, long maxQueuedBytes, int maxQueuedItems) {
+		_target = target;
+		_maxQueuedBytes = maxQueuedBytes;
+		_maxQueuedItems = maxQueuedItems;
+		_queue = new LinkedList<Item>();
+	}
+
+	/** called from the writer thread each time queued data was written */
+	public synchronized void setDrainListener(Runnable listener) {
+		_drainListener = listener;
+	}
+
+	public void addItem(String name, Bucket data) throws IOException {
+		synchronized (this) {
+			if (!_closed) {
+				_queue.add(new Item(name, data, null, null, false));
+				_queuedBytes += data.size();
+				_queuedItems++;
+				notifyAll();
+				return;
+			}
+		}
+		// writer is gone, nobody will ever write it
+		data.free();
+		throw new IOException("Archive writer closed");
+	}
+
+	/** links are queued without data, the target is written before anyway */
+	public synchronized void addLink(String name, String target, Bucket data) throws IOException {
+		if (_closed)
+			throw new IOException("Archive writer closed");
+		_queue.add(new Item(name, null, null, target, false));
+		notifyAll();
+	}
+
+	public synchronized void addReport(String name, String report) {
+		if (_closed)
+			return;
+		_queue.add(new Item(name, null, report, null, false));
+		notifyAll();
+	}
+
+	public synchronized void finish() throws IOException {
+		if (_closed)
+			return;
+		_queue.add(new Item(null, null, null, null, true));
+		notifyAll();
+	}
+
+	public synchronized boolean canStart() {
+		return (_queuedBytes < _maxQueuedBytes) && (_queuedItems < _maxQueuedItems);
+	}
+
+	public synchronized long getQueuedBytes() {
+		return _queuedBytes;
+	}
+
+	public synchronized int getQueuedItems() {
+		return _queuedItems;
+	}
+
+	/** item data passed on to the archive so far */
+	public synchronized long getWrittenBytes() {
+		return _writtenBytes;
+	}
+
+	/**
+	 * Write queued items until {@link #finish()} was queued. Must be called
+	 * from exactly one thread.
+	 * @throws IOException if writing the archive failed, the writer is closed
+	 * then and queued items are dropped
+	 */
+	public void writeAll() throws IOException {
+		try {
+			while (true) {
+				Item item = take();
+				if (item.last) {
+					_target.finish();
+					return;
+				}
+				if (item.report != null) {
+					_target.addReport(item.name, item.report);
+					continue;
+				}
+				if (item.linkTarget != null) {
+					_target.addLink(item.name, item.linkTarget, null);
+					continue;
+				}
+				long size = item.data.size();
+				try {
+					_target.addItem(item.name, item.data);
+					synchronized (this) {
+						_writtenBytes += size;
+					}
+				} finally {
+					item.data.free();
+					synchronized (this) {
+						_queuedBytes -= size;
+						_queuedItems--;
+					}
+				}
+				Runnable listener;
+				synchronized (this) {
+					listener = _drainListener;
+				}
+				if (listener != null)
+					listener.run();
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Free the queued items and refuse new ones, for a run that ends
+	 * without (or before) {@link #writeAll()}.
+	 */
+	public void discard() {
+		close();
+	}
+
+	private synchronized Item take() {
+		while (_queue.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+		return _queue.removeFirst();
+	}
+
+	private void close() {
+		LinkedList<Item> dropped;
+		synchronized (this) {
+			_closed = true;
+			dropped = new LinkedList<Item>(_queue);
+			_queue.clear();
+			_queuedBytes = 0;
+			_queuedItems = 0;
+		}
+		for (Item item : dropped) {
+			if (item.data != null) {
+				Logger.normal(this, "Dropping unwritten item: " + item.name);
+				item.data.free();
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+
+/**
+ * On-disk checkpoint of a site download. Each completed item is copied to
+ * a spool file in the journal directory and recorded with its name, size
+ * and SHA-256 hash in an append-only journal file. A restarted download
+ * rebuilds the archive from the journal and only fetches what is missing.
+ *
+ * Items with the same content share one spool file.
+ *
+ * The first journal line is a header with the key of the download (like
+ * uri and archive type), a journal with another key is thrown away.
+ *
+ * Journal header format: # urlencoded-key
+ * Journal line format: size hash spoolfile urlencoded-name
+ */
+public class DownloadJournal {
+
+	private static final String JOURNAL_NAME = "journal";
+	private static final String SPOOL_PREFIX = "item-";
+	private static final String HEADER_PREFIX = "# ";
+
+	public static class Entry {
+		public final String name;
+		public final long size;
+		public final String hash;
+		public final File file;
+
+		Entry(String name, long size, String hash, File file) {
+			this.name = name;
+			this.size = size;
+			this.hash = hash;
+			this.file = file;
+		}
+
+		/** read only bucket of the spooled data */
+		public Bucket getBucket() {
+			return new FileBucket(file, true, false, false, false, false);
+		}
+	}
+
+	private final File _dir;
+	private final File _journalFile;
+	private final String _key;
+	private final LinkedHashMap<String, Entry> _entries;
+	private final HashMap<String, Entry> _byHash;
+	private Writer _writer;
+	private int _nextFile;
+	private boolean _hasHeader;
+
+	/**
+	 * @param key what is downloaded, a journal left by a download with
+	 * another key is deleted
+	 */
+	public DownloadJournal(File dir, String key) throws IOException {
+		_dir = dir;
+		_journalFile = new File(dir, JOURNAL_NAME);
+		_key = key;
+		_entries = new LinkedHashMap<String, Entry>();
+		_byHash = new HashMap<String, Entry>();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Can't create journal directory " + dir);
+		if (!load()) {
+			Logger.normal(this, "Journal " + _journalFile + " is from another download, deleting it");
+			deleteDirectory(dir);
+			if (!dir.mkdirs())
+				throw new IOException("Can't create journal directory " + dir);
+		}
+	}
+
+	/** hex encoded SHA-256, used as item hash and to make names for journal dirs */
+	public static String hash(String s) {
+		try {
+			return HexUtil.bytesToHex(getDigest().digest(s.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("UTF-8 not supported", e);
+		}
+	}
+
+	public static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 not supported", e);
+		}
+	}
+
+	/** @return false if the journal has another key, nothing is loaded then */
+	private boolean load() throws IOException {
+		if (!_journalFile.exists())
+			return true;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(_journalFile), "UTF-8"));
+			String line = br.readLine();
+			if (line == null)
+				return true;
+			if (!line.startsWith(HEADER_PREFIX) || !_key.equals(URLDecoder.decode(line.substring(HEADER_PREFIX.length()), "UTF-8")))
+				return false;
+			_hasHeader = true;
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split(" ", 4);
+				if (parts.length != 4) {
+					// torn write at the end of the journal
+					Logger.normal(this, "Ignoring broken journal line in " + _journalFile);
+					continue;
+				}
+				File f = new File(_dir, parts[2]);
+				long size;
+				try {
+					size = Long.parseLong(parts[0]);
+				} catch (NumberFormatException e) {
+					Logger.normal(this, "Ignoring broken journal line in " + _journalFile);
+					continue;
+				}
+				if (!f.isFile() || (f.length() != size)) {
+					Logger.normal(this, "Spool file missing or truncated: " + f);
+					continue;
+				}
+				String name = URLDecoder.decode(parts[3], "UTF-8");
+				Entry entry = new Entry(name, size, parts[1], f);
+				_entries.put(name, entry);
+				if (!_byHash.containsKey(entry.hash))
+					_byHash.put(entry.hash, entry);
+				_nextFile = Math.max(_nextFile, spoolNumber(parts[2]) + 1);
+			}
+		} finally {
+			Closer.close(br);
+		}
+		return true;
+	}
+
+	private static int spoolNumber(String fileName) {
+		if (!fileName.startsWith(SPOOL_PREFIX))
+			return -1;
+		try {
+			return Integer.parseInt(fileName.substring(SPOOL_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public synchronized boolean contains(String name) {
+		return _entries.containsKey(name);
+	}
+
+	public synchronized Set<String> getNames() {
+		return new HashSet<String>(_entries.keySet());
+	}
+
+	/** entries in the order they were journaled */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(_entries.values());
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * Copy the data to a spool file and record it in the journal.
+	 * @return the new entry, its bucket replaces data for further use
+	 */
+	public Entry store(String name, Bucket data) throws IOException {
+		File f;
+		synchronized (this) {
+			f = new File(_dir, SPOOL_PREFIX + (_nextFile++));
+		}
+		MessageDigest md = getDigest();
+		long size = 0;
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = new FileOutputStream(f);
+			byte[] buf = new byte[32768];
+			int read;
+			while ((read = is.read(buf)) > 0) {
+				md.update(buf, 0, read);
+				os.write(buf, 0, read);
+				size += read;
+			}
+			os.close();
+			os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		String hash = HexUtil.bytesToHex(md.digest());
+		synchronized (this) {
+			Entry same = _byHash.get(hash);
+			if ((same != null) && (same.size == size)) {
+				// known content, share the spool file
+				if (!f.delete())
+					Logger.error(this, "Can't delete duplicate spool file " + f);
+				f = same.file;
+			}
+			return append(new Entry(name, size, hash, f));
+		}
+	}
+
+	/**
+	 * Record name with the same content as the journaled item target.
+	 */
+	public synchronized Entry storeLink(String name, String target) throws IOException {
+		Entry same = _entries.get(target);
+		if (same == null)
+			throw new IOException("Link target not in journal: " + target);
+		return append(new Entry(name, same.size, same.hash, same.file));
+	}
+
+	private Entry append(Entry entry) throws IOException {
+		if (_writer == null) {
+			_writer = new OutputStreamWriter(new FileOutputStream(_journalFile, _hasHeader), "UTF-8");
+			if (!_hasHeader) {
+				_writer.write(HEADER_PREFIX + URLEncoder.encode(_key, "UTF-8") + '\n');
+				_hasHeader = true;
+			}
+		}
+		_writer.write(entry.size + " " + entry.hash + ' ' + entry.file.getName() + ' ' + URLEncoder.encode(entry.name, "UTF-8") + '\n');
+		_writer.flush();
+		_entries.put(entry.name, entry);
+		if (!_byHash.containsKey(entry.hash))
+			_byHash.put(entry.hash, entry);
+		return entry;
+	}
+
+	public synchronized void close() {
+		Closer.close(_writer);
+		_writer = null;
+	}
+
+	/** close the journal and delete it with all spooled data */
+	public synchronized void delete() {
+		close();
+		deleteDirectory(_dir);
+		_entries.clear();
+		_byHash.clear();
+	}
+
+	/** delete a journal directory that is not open */
+	public static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.delete())
+					Logger.error(DownloadJournal.class, "Can't delete journal file " + f);
+			}
+		}
+		dir.delete();
+	}
+}
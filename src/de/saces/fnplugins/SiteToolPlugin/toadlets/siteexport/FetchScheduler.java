@@ -0,0 +1,187 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Limits the number of concurrently running fetches. Jobs are queued and
+ * started as soon as a slot is free, both the per scheduler (session) limit
+ * and the global limit shared by all schedulers are honoured.
+ *
+ * Every started job must call {@link #jobDone()} exactly once.
+ * A {@link Throttle} may hold back new jobs, call {@link #pump()} once it
+ * allows starting again.
+ */
+public class FetchScheduler {
+
+	public interface Job {
+		/** start the fetch. must not block. */
+		void start();
+	}
+
+	public interface Throttle {
+		/** false to hold back starting of further jobs */
+		boolean canStart();
+	}
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+	public static final int DEFAULT_GLOBAL_MAX_IN_FLIGHT = 32;
+
+	private static final Object globalLock = new Object();
+	private static int globalMaxInFlight = DEFAULT_GLOBAL_MAX_IN_FLIGHT;
+	private static int globalInFlight = 0;
+	// schedulers waiting for a global slot
+	private static final LinkedList<FetchScheduler> starving = new LinkedList<FetchScheduler>();
+
+	private final LinkedList<Job> _pending;
+	private int _maxInFlight;
+	private int _inFlight;
+	private boolean _cancelled;
+	private Throttle _throttle;
+
+	public FetchScheduler() {
+		this(DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public FetchScheduler(int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		_pending = new LinkedList<Job>();
+		_maxInFlight = maxInFlight;
+	}
+
+	public static void setGlobalMaxInFlight(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be positive");
+		synchronized (globalLock) {
+			globalMaxInFlight = max;
+		}
+		wakeStarving();
+	}
+
+	public static int getGlobalMaxInFlight() {
+		synchronized (globalLock) {
+			return globalMaxInFlight;
+		}
+	}
+
+	public static int getGlobalInFlight() {
+		synchronized (globalLock) {
+			return globalInFlight;
+		}
+	}
+
+	public void setMaxInFlight(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be positive");
+		synchronized (this) {
+			_maxInFlight = max;
+		}
+		pump();
+	}
+
+	public synchronized void setThrottle(Throttle throttle) {
+		_throttle = throttle;
+	}
+
+	/**
+	 * queue a job, it is started immediately if there is a free slot
+	 * @return false if the scheduler was cancelled and the job was not queued
+	 */
+	public boolean submit(Job job) {
+		synchronized (this) {
+			if (_cancelled)
+				return false;
+			_pending.add(job);
+		}
+		pump();
+		return true;
+	}
+
+	/** a started job has finished (success or failure), free its slot */
+	public void jobDone() {
+		synchronized (this) {
+			if (_inFlight < 1)
+				throw new IllegalStateException("jobDone() without running job");
+			_inFlight--;
+		}
+		releaseGlobal();
+		pump();
+	}
+
+	/**
+	 * Drop all pending jobs, running jobs are not affected.
+	 * @return the dropped jobs
+	 */
+	public synchronized List<Job> cancel() {
+		_cancelled = true;
+		List<Job> dropped = new ArrayList<Job>(_pending);
+		_pending.clear();
+		return dropped;
+	}
+
+	public synchronized int getPending() {
+		return _pending.size();
+	}
+
+	public synchronized int getInFlight() {
+		return _inFlight;
+	}
+
+	/** true if nothing is queued or running */
+	public synchronized boolean isIdle() {
+		return _pending.isEmpty() && (_inFlight == 0);
+	}
+
+	/** start queued jobs as long as slots are available */
+	public void pump() {
+		while (true) {
+			Job job;
+			synchronized (this) {
+				if (_cancelled || _pending.isEmpty() || (_inFlight >= _maxInFlight))
+					return;
+				if ((_throttle != null) && !_throttle.canStart())
+					return;
+				if (!acquireGlobal(this))
+					return;
+				job = _pending.removeFirst();
+				_inFlight++;
+			}
+			// start outside the lock, a failing start may call jobDone() at once
+			job.start();
+		}
+	}
+
+	private static boolean acquireGlobal(FetchScheduler scheduler) {
+		synchronized (globalLock) {
+			if (globalInFlight < globalMaxInFlight) {
+				globalInFlight++;
+				return true;
+			}
+			if (!starving.contains(scheduler))
+				starving.add(scheduler);
+			return false;
+		}
+	}
+
+	private static void releaseGlobal() {
+		synchronized (globalLock) {
+			globalInFlight--;
+		}
+		wakeStarving();
+	}
+
+	private static void wakeStarving() {
+		List<FetchScheduler> wake;
+		synchronized (globalLock) {
+			if (starving.isEmpty())
+				return;
+			wake = new ArrayList<FetchScheduler>(starving);
+			starving.clear();
+		}
+		for (FetchScheduler scheduler : wake) {
+			scheduler.pump();
+		}
+	}
+}
@@ -7,6 +7,11 @@ import freenet.support.api.Bucket;
 public interface ISiteParserCallback {
 
 	public void addItem(String name, Bucket data) throws IOException;
+	/**
+	 * name has the same content as the already added item target.
+	 * @param data the content for collectors that can't link, may be null
+	 */
+	public void addLink(String name, String target, Bucket data) throws IOException;
 	public void addReport(String name, String report);
 	public void finish() throws IOException;
 
@@ -0,0 +1,62 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import freenet.support.api.Bucket;
+
+/**
+ * Records every item in a {@link DownloadJournal} before passing the
+ * spooled copy on to the target. Content already passed on under another
+ * name is passed as link to the first name.
+ */
+public class JournalCollector implements ISiteParserCallback {
+
+	private final ISiteParserCallback _target;
+	private final DownloadJournal _journal;
+	// content hash -> name the content was first passed on
+	private final HashMap<String, String> _nameByHash;
+
+	public JournalCollector(ISiteParserCallback target, DownloadJournal journal) {
+		_target = target;
+		_journal = journal;
+		_nameByHash = new HashMap<String, String>();
+	}
+
+	/** pass all items already in the journal to the target */
+	public int replay() throws IOException {
+		int count = 0;
+		for (DownloadJournal.Entry entry : _journal.getEntries()) {
+			add(entry);
+			count++;
+		}
+		return count;
+	}
+
+	public void addItem(String name, Bucket data) throws IOException {
+		add(_journal.store(name, data));
+	}
+
+	public void addLink(String name, String target, Bucket data) throws IOException {
+		add(_journal.storeLink(name, target));
+	}
+
+	private void add(DownloadJournal.Entry entry) throws IOException {
+		String first = _nameByHash.get(entry.hash);
+		if (first == null) {
+			_nameByHash.put(entry.hash, entry.name);
+			_target.addItem(entry.name, entry.getBucket());
+		} else {
+			_target.addLink(entry.name, first, entry.getBucket());
+		}
+	}
+
+	public void addReport(String name, String report) {
+		_target.addReport(name, report);
+	}
+
+	public void finish() throws IOException {
+		_journal.close();
+		_target.finish();
+	}
+}
@@ -0,0 +1,209 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import SevenZip.Compression.LZMA.Encoder;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Compresses everything written to it with LZMA in one pass. The 7zip
+ * encoder only pulls from an InputStream, so it runs on an executor thread
+ * and is fed with chunks of the written data.
+ *
+ * The output is the raw LZMA stream with end marker, the same as encoding
+ * the whole input at once.
+ */
+public class LZMAOutputStream extends OutputStream {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_CHUNKS = 8;
+	private static final byte[] EOF = new byte[0];
+
+	private class ChunkInputStream extends InputStream {
+
+		private byte[] __chunk;
+		private int __pos;
+		private boolean __eof;
+
+		private boolean nextChunk() throws IOException {
+			while ((__chunk == null) || (__pos >= __chunk.length)) {
+				if (__eof)
+					return false;
+				try {
+					__chunk = _chunks.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for data");
+				}
+				__pos = 0;
+				if (__chunk == EOF) {
+					__eof = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk())
+				return -1;
+			return __chunk[__pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextChunk())
+				return -1;
+			int count = Math.min(len, __chunk.length - __pos);
+			System.arraycopy(__chunk, __pos, b, off, count);
+			__pos += count;
+			return count;
+		}
+	}
+
+	private final OutputStream _out;
+	private final ArrayBlockingQueue<byte[]> _chunks;
+	private byte[] _buffer;
+	private int _bufferPos;
+	private boolean _closed;
+	private boolean _encoderDone;
+	private Throwable _error;
+
+	public LZMAOutputStream(OutputStream out, Executor executor) {
+		this(out, executor, 1 << 20);
+	}
+
+	public LZMAOutputStream(OutputStream out, Executor executor, int dictionarySize) {
+		_out = out;
+		_chunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS);
+		_buffer = new byte[CHUNK_SIZE];
+		final Encoder encoder = new Encoder();
+		encoder.SetEndMarkerMode( true );
+		encoder.SetDictionarySize( dictionarySize );
+		final InputStream in = new ChunkInputStream();
+		executor.execute(new Runnable() {
+			public void run() {
+				Throwable error = null;
+				try {
+					encoder.Code( in, _out, -1, -1, null );
+				} catch (Throwable t) {
+					Logger.error(this, "LZMA encoding failed", t);
+					error = t;
+				}
+				synchronized (LZMAOutputStream.this) {
+					_error = error;
+					_encoderDone = true;
+					LZMAOutputStream.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		_buffer[_bufferPos++] = (byte) b;
+		if (_bufferPos == _buffer.length)
+			sendBuffer();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		while (len > 0) {
+			int count = Math.min(len, _buffer.length - _bufferPos);
+			System.arraycopy(b, off, _buffer, _bufferPos, count);
+			_bufferPos += count;
+			off += count;
+			len -= count;
+			if (_bufferPos == _buffer.length)
+				sendBuffer();
+		}
+	}
+
+	/** LZMA can't be flushed mid stream, data is passed on in chunks anyway */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (_closed)
+			return;
+		boolean encoded = false;
+		try {
+			if (_bufferPos > 0) {
+				byte[] last = new byte[_bufferPos];
+				System.arraycopy(_buffer, 0, last, 0, _bufferPos);
+				put(last);
+			}
+			put(EOF);
+			synchronized (this) {
+				while (!_encoderDone) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+			checkError();
+			encoded = true;
+		} finally {
+			_closed = true;
+			_buffer = null;
+			// keep the encoder error, not one from closing after it
+			if (!encoded)
+				Closer.close(_out);
+		}
+		_out.close();
+	}
+
+	private void sendBuffer() throws IOException {
+		put(_buffer);
+		_buffer = new byte[CHUNK_SIZE];
+		_bufferPos = 0;
+	}
+
+	private void put(byte[] chunk) throws IOException {
+		while (true) {
+			checkError();
+			try {
+				// don't wait forever, the encoder may have died meanwhile
+				if (_chunks.offer(chunk, 1, TimeUnit.SECONDS))
+					return;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the encoder");
+			}
+			synchronized (this) {
+				if (_encoderDone && (_error == null))
+					throw new IOException("LZMA encoder stopped unexpectedly");
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (_closed)
+			throw new IOException("Stream closed");
+	}
+
+	private synchronized void checkError() throws IOException {
+		if (_error == null)
+			return;
+		if (_error instanceof IOException)
+			throw (IOException) _error;
+		IOException ioe = new IOException("LZMA encoding failed: " + _error);
+		ioe.initCause(_error);
+		throw ioe;
+	}
+}
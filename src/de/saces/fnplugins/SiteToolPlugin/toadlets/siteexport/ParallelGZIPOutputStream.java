@@ -0,0 +1,179 @@
+package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.support.Executor;
+import freenet.support.io.Closer;
+
+/**
+ * pigz style gzip compression. The input is split into blocks which are
+ * compressed independently on the executor, each into a complete gzip
+ * member. The members are written in order, a gzip stream of concatenated
+ * members is valid and decompresses to the concatenated input.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	private static class Block implements Runnable {
+
+		private final byte[] __data;
+		private final int __length;
+		private byte[] __result;
+		private Throwable __error;
+		private boolean __done;
+
+		Block(byte[] data, int length) {
+			__data = data;
+			__length = length;
+		}
+
+		public void run() {
+			byte[] result = null;
+			Throwable error = null;
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream((__length / 2) + 64);
+				GZIPOutputStream gos = new GZIPOutputStream(bos);
+				gos.write(__data, 0, __length);
+				gos.close();
+				result = bos.toByteArray();
+			} catch (Throwable t) {
+				error = t;
+			}
+			synchronized (this) {
+				__result = result;
+				__error = error;
+				__done = true;
+				notifyAll();
+			}
+		}
+
+		synchronized boolean isDone() {
+			return __done;
+		}
+
+		synchronized byte[] waitForResult() throws IOException {
+			while (!__done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if (__error != null) {
+				IOException ioe = new IOException("Block compression failed: " + __error);
+				ioe.initCause(__error);
+				throw ioe;
+			}
+			return __result;
+		}
+	}
+
+	private final OutputStream _out;
+	private final Executor _executor;
+	private final int _blockSize;
+	private final int _maxPending;
+	private final LinkedList<Block> _pending;
+	private byte[] _buffer;
+	private int _bufferPos;
+	private boolean _closed;
+
+	public ParallelGZIPOutputStream(OutputStream out, Executor executor) {
+		this(out, executor, DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads the maximum number of blocks compressed at once
+	 */
+	public ParallelGZIPOutputStream(OutputStream out, Executor executor, int blockSize, int threads) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be positive");
+		_out = out;
+		_executor = executor;
+		_blockSize = blockSize;
+		_maxPending = Math.max(1, threads);
+		_pending = new LinkedList<Block>();
+		_buffer = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		_buffer[_bufferPos++] = (byte) b;
+		if (_bufferPos == _blockSize)
+			submitBuffer();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		while (len > 0) {
+			int count = Math.min(len, _blockSize - _bufferPos);
+			System.arraycopy(b, off, _buffer, _bufferPos, count);
+			_bufferPos += count;
+			off += count;
+			len -= count;
+			if (_bufferPos == _blockSize)
+				submitBuffer();
+		}
+	}
+
+	/**
+	 * Writes out the blocks compressed so far. Buffered data is kept until
+	 * the block is full, tiny gzip members would hurt the ratio.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+		while (!_pending.isEmpty() && _pending.getFirst().isDone())
+			writeHead();
+		_out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (_closed)
+			return;
+		boolean written = false;
+		try {
+			if (_bufferPos > 0)
+				submitBuffer();
+			while (!_pending.isEmpty())
+				writeHead();
+			written = true;
+		} finally {
+			_closed = true;
+			_buffer = null;
+			_pending.clear();
+			// keep the compression error, not one from closing after it
+			if (!written)
+				Closer.close(_out);
+		}
+		_out.close();
+	}
+
+	private void submitBuffer() throws IOException {
+		// write out finished blocks, wait for the oldest if too many are running
+		while (!_pending.isEmpty() && ((_pending.size() >= _maxPending) || _pending.getFirst().isDone()))
+			writeHead();
+		Block block = new Block(_buffer, _bufferPos);
+		_pending.add(block);
+		_executor.execute(block);
+		_buffer = new byte[_blockSize];
+		_bufferPos = 0;
+	}
+
+	private void writeHead() throws IOException {
+		Block block = _pending.removeFirst();
+		_out.write(block.waitForResult());
+	}
+
+	private void checkOpen() throws IOException {
+		if (_closed)
+			throw new IOException("Stream closed");
+	}
+}
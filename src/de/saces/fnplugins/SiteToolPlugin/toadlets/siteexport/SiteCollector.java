@@ -5,13 +5,13 @@ import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.tools.tar.TarConstants;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarOutputStream;
 
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.BucketTools;
-import freenet.support.io.Closer;
 
 public class SiteCollector implements ISiteParserCallback {
 
@@ -22,7 +22,9 @@ public class SiteCollector implements ISiteParserCallback {
 
 	private interface Collector {
 		void addItem(String name, Bucket data) throws IOException;
-		void finish();
+		void addLink(String name, String target, Bucket data) throws IOException;
+		/** closes the archive and the stream below, errors must not be lost */
+		void finish() throws IOException;
 	}
 
 	private class ZipCollector implements Collector {
@@ -33,8 +35,8 @@ public class SiteCollector implements ISiteParserCallback {
 			__zos = new ZipOutputStream(_os);
 		}
 
-		public void finish() {
-			Closer.close(__zos);
+		public void finish() throws IOException {
+			__zos.close();
 		}
 
 		public void addItem(String name, Bucket data) throws IOException {
@@ -44,6 +46,13 @@ public class SiteCollector implements ISiteParserCallback {
 			BucketTools.copyTo(data, __zos, data.size());
 			__zos.closeEntry();
 		}
+
+		public void addLink(String name, String target, Bucket data) throws IOException {
+			// zip has no links, store the content again
+			if (data == null)
+				throw new IOException("No data for duplicate item: " + name);
+			addItem(name, data);
+		}
 	}
 
 	private class TarCollector implements Collector {
@@ -54,8 +63,8 @@ public class SiteCollector implements ISiteParserCallback {
 			__tos = new TarOutputStream(_os);
 		}
 
-		public void finish() {
-			Closer.close(__tos);
+		public void finish() throws IOException {
+			__tos.close();
 		}
 
 		public void addItem(String name, Bucket data) throws IOException {
@@ -67,6 +76,15 @@ public class SiteCollector implements ISiteParserCallback {
 			BucketTools.copyTo(data, __tos, size);
 			__tos.closeEntry();
 		}
+
+		public void addLink(String name, String target, Bucket data) throws IOException {
+			TarEntry te = new TarEntry(name, TarConstants.LF_LINK);
+			te.setLinkName(target);
+			te.setModTime(0);
+			te.setSize(0);
+			__tos.putNextEntry(te);
+			__tos.closeEntry();
+		}
 	}
 
 	public SiteCollector(OutputStream os, boolean zip, BucketFactory bf) {
@@ -84,6 +102,10 @@ public class SiteCollector implements ISiteParserCallback {
 		_collector.addItem("content" + name, data);
 	}
 
+	public void addLink(String name, String target, Bucket data) throws IOException {
+		_collector.addLink("content" + name, "content" + target, data);
+	}
+
 	public void addReport(String name, String report) {
 		_sb.append(name);
 		_sb.append(" : ");
@@ -1,7 +1,10 @@
 package de.saces.fnplugins.SiteToolPlugin.toadlets.siteexport;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.Map.Entry;
 
 
@@ -65,12 +68,46 @@ public class SiteParser implements ClientGetCallback {
 		}
 	}
 
+	private class FetchJob implements FetchScheduler.Job {
+
+		private final String _name;
+		private final FreenetURI _itemUri;
+
+		FetchJob(String name, FreenetURI itemUri) {
+			_name = name;
+			_itemUri = itemUri;
+		}
+
+		public void start() {
+			FetchContext context = _hlsc.getFetchContext();
+			ProgressMonitor pm = new ProgressMonitor();
+			context.eventProducer.addEventListener(pm);
+			ClientGetter get = new ClientGetter(SiteParser.this, _itemUri, context, RequestStarter.INTERACTIVE_PRIORITY_CLASS, (RequestClient)_hlsc, null, null);
+			boolean cancelled;
+			synchronized (SiteParser.this) {
+				_statusByName.put(_name, pm);
+				_getter2nameMap.put(get, _name);
+				cancelled = _cancelled;
+			}
+			if (cancelled) {
+				onFailure(new FetchException(FetchException.CANCELLED), get, null);
+				return;
+			}
+			try {
+				get.start(null, _clientContext);
+			} catch (FetchException e) {
+				onFailure(e, get, null);
+			}
+		}
+	}
+
 	private final boolean _deep;
 	private final boolean _multilevel;
 	private final ISiteParserCallback _cb;
 	private final FreenetURI _uri;
 	private final HighLevelSimpleClient _hlsc;
 	private final ClientContext _clientContext;
+	private final FetchScheduler _scheduler;
 	
 	private int itemsLeft=0;
 	private int itemsTotal=0;
@@ -81,8 +118,23 @@ public class SiteParser implements ClientGetCallback {
 	private final HashMap<String, ProgressMonitor> _statusByName;
 	
 	private boolean parsingDone;
+	private boolean finished;
+	private boolean _cancelled;
+	private Set<String> _skipItems;
+	private int itemsSkipped=0;
+	private int itemsDuplicate=0;
+	private long bytesFetched=0;
+
+	// names fetched once for several names pointing to the same key
+	private final HashMap<String, List<String>> _aliases;
+	// target key -> first name, while parsing
+	private final HashMap<String, String> _nameByTarget;
 
 	public SiteParser(ISiteParserCallback callback, FreenetURI uri, boolean multilevel, boolean deep, HighLevelSimpleClient hlsc, ClientContext clientContext) {
+		this(callback, uri, multilevel, deep, hlsc, clientContext, FetchScheduler.DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public SiteParser(ISiteParserCallback callback, FreenetURI uri, boolean multilevel, boolean deep, HighLevelSimpleClient hlsc, ClientContext clientContext, int maxInFlight) {
 		_deep = deep;
 		_cb = callback;
 		_multilevel = multilevel;
@@ -91,12 +143,18 @@ public class SiteParser implements ClientGetCallback {
 		_getter2nameMap = new HashMap<ClientGetter, String>();
 		_clientContext = clientContext;
 		_statusByName = new HashMap<String, ProgressMonitor>();
+		_scheduler = new FetchScheduler(maxInFlight);
+		_aliases = new HashMap<String, List<String>>();
+		_nameByTarget = new HashMap<String, String>();
 	}
 
 	public void parseSite() throws FetchException, IOException {
-		parsingDone = false;
-		if (!_getter2nameMap.isEmpty())
-			throw new IllegalStateException("getter2nameMap not empty on start!");
+		synchronized (this) {
+			parsingDone = false;
+			finished = false;
+			if (!_getter2nameMap.isEmpty())
+				throw new IllegalStateException("getter2nameMap not empty on start!");
+		}
 		Snooper snooper = new Snooper();
 		FetchContext context = _hlsc.getFetchContext();
 		FetchWaiter fw = new FetchWaiter();
@@ -117,7 +175,11 @@ public class SiteParser implements ClientGetCallback {
 		}
 		HashMap<String, Metadata> docs = snooper._meta.getDocuments();
 		parseMetadata(docs, "/", _uri);
-		parsingDone = true;
+		synchronized (this) {
+			parsingDone = true;
+			_nameByTarget.clear();
+		}
+		checkFinished();
 	}
 
 	private void parseMetadata(HashMap<String, Metadata> docs, String prefix, FreenetURI uri) throws IOException {
@@ -128,42 +190,99 @@ public class SiteParser implements ClientGetCallback {
 				parseMetadata(md.getDocuments(), prefix + name + '/', uri.pushMetaString(name));
 				continue;
 			}
-			final String tempName = prefix + name;
-
-			FetchContext context = _hlsc.getFetchContext();
-			ProgressMonitor pm = new ProgressMonitor();
-			context.eventProducer.addEventListener(pm);
-			_statusByName.put(tempName, pm);
-			ClientGetter get = new ClientGetter(this, uri.pushMetaString(name), context, RequestStarter.INTERACTIVE_PRIORITY_CLASS, (RequestClient)_hlsc, null, null);
-			_getter2nameMap.put(get, tempName);
-			itemsTotal++;
-			itemsLeft++;
-			try {
-				get.start(null, _clientContext);
-			} catch (FetchException e) {
-				onFailure(e, get, null);
+			String tempName = prefix + name;
+			synchronized (this) {
+				itemsTotal++;
+				if ((_skipItems != null) && _skipItems.contains(tempName)) {
+					// already there from a previous run
+					itemsDone++;
+					itemsSkipped++;
+					continue;
+				}
+				itemsLeft++;
+				if (md.isSingleFileRedirect()) {
+					String target = md.getSingleTarget().toString(false, false);
+					String first = _nameByTarget.get(target);
+					if (first != null) {
+						// same key as an item already queued, fetch it only once
+						List<String> aliases = _aliases.get(first);
+						if (aliases == null) {
+							aliases = new ArrayList<String>();
+							_aliases.put(first, aliases);
+						}
+						aliases.add(tempName);
+						itemsDuplicate++;
+						continue;
+					}
+					_nameByTarget.put(target, tempName);
+				}
+			}
+			// the fetch is started as soon as the scheduler has a free slot
+			if (!_scheduler.submit(new FetchJob(tempName, uri.pushMetaString(name)))) {
+				synchronized (this) {
+					itemsLeft--;
+					itemsError++;
+					_nameByTarget.values().remove(tempName);
+				}
+				_cb.addReport(tempName, "Cancelled");
 			}
 		}
 	}
 
 	public void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
-		itemsError++;
-		String name = _getter2nameMap.get(state);
+		String name;
+		List<String> aliases;
+		synchronized (this) {
+			name = _getter2nameMap.get(state);
+			aliases = _aliases.get(name);
+			itemsError += 1 + ((aliases == null) ? 0 : aliases.size());
+		}
 		Logger.error(this, "500", e);
 		_cb.addReport(name, e.getLocalizedMessage());
+		if (aliases != null) {
+			for (String alias : aliases) {
+				_cb.addReport(alias, e.getLocalizedMessage());
+			}
+		}
 		removeGetter(state);
 	}
 
 	public void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
-		itemsDone++;
-		String name = _getter2nameMap.get(state);
+		String name;
+		List<String> aliases;
+		synchronized (this) {
+			name = _getter2nameMap.get(state);
+			aliases = _aliases.get(name);
+			bytesFetched += result.size();
+		}
 		try {
 			_cb.addItem(name, result.asBucket());
+			synchronized (this) {
+				itemsDone++;
+			}
 		} catch (IOException e) {
-			itemsDone--;
-			itemsError++;
+			synchronized (this) {
+				itemsError += 1 + ((aliases == null) ? 0 : aliases.size());
+			}
 			Logger.error(this, "500", e);
 			_cb.addReport(name, e.getLocalizedMessage());
+			aliases = null;
+		}
+		if (aliases != null) {
+			for (String alias : aliases) {
+				try {
+					_cb.addLink(alias, name, null);
+					synchronized (this) {
+						itemsDone++;
+					}
+				} catch (IOException e) {
+					synchronized (this) {
+						itemsError++;
+					}
+					Logger.error(this, "500", e);
+					_cb.addReport(alias, e.getLocalizedMessage());
+				}
+			}
 		}
 		removeGetter(state);
 	}
@@ -172,24 +291,34 @@ public class SiteParser implements ClientGetCallback {
 		// ignore
 	}
 
-	private synchronized void removeGetter(ClientGetter getter) {
-		String name = _getter2nameMap.remove(getter);
-		_statusByName.remove(name);
-		itemsLeft--;
-		if (_getter2nameMap.isEmpty()) {
-			try {
-				_cb.finish();
-			} catch (IOException e) {
-				Logger.error(this, "FATAL", e);
-				e.printStackTrace();
-			}
+	private void removeGetter(ClientGetter getter) {
+		synchronized (this) {
+			String name = _getter2nameMap.remove(getter);
+			_statusByName.remove(name);
+			List<String> aliases = _aliases.remove(name);
+			itemsLeft -= 1 + ((aliases == null) ? 0 : aliases.size());
+		}
+		// frees the slot and starts the next queued fetch, if any
+		_scheduler.jobDone();
+		checkFinished();
+	}
+
+	private synchronized void checkFinished() {
+		if (finished || !parsingDone || !_scheduler.isIdle())
+			return;
+		finished = true;
+		try {
+			_cb.finish();
+		} catch (IOException e) {
+			Logger.error(this, "FATAL", e);
+			e.printStackTrace();
 		}
 		notifyAll();
 	}
 
 	/** Wait for the parsing and fetching to complete. */
 	public synchronized void waitForCompletion() {
-		while(!(parsingDone && _getter2nameMap.isEmpty())) {
+		while(!finished) {
 			try {
 				wait();
 			} catch (InterruptedException e) {
@@ -199,29 +328,85 @@ public class SiteParser implements ClientGetCallback {
 	}
 
 	public void cancel(boolean wait) {
+		int dropped = 0;
+		ClientGetter[] getters;
 		synchronized (this) {
-			for (ClientGetter getter:_getter2nameMap.keySet()) {
-				getter.cancel(null, _clientContext);
+			_cancelled = true;
+			for (FetchScheduler.Job job : _scheduler.cancel()) {
+				List<String> aliases = _aliases.remove(((FetchJob) job)._name);
+				dropped += 1 + ((aliases == null) ? 0 : aliases.size());
 			}
+			itemsLeft -= dropped;
+			itemsError += dropped;
+			getters = _getter2nameMap.keySet().toArray(new ClientGetter[_getter2nameMap.size()]);
+		}
+		if (dropped > 0) {
+			_cb.addReport("(queue)", dropped + " items not fetched, cancelled");
 		}
+		for (ClientGetter getter:getters) {
+			getter.cancel(null, _clientContext);
+		}
+		checkFinished();
 		// if (wait) waitForDone();
 	}
 
-	public int getItemsTotal() {
+	public void setMaxInFlight(int max) {
+		_scheduler.setMaxInFlight(max);
+	}
+
+	/** items with this names are counted as done and not fetched again */
+	public synchronized void setSkipItems(Set<String> names) {
+		_skipItems = names;
+	}
+
+	/** hold back new fetches while the throttle says so */
+	public void setThrottle(FetchScheduler.Throttle throttle) {
+		_scheduler.setThrottle(throttle);
+	}
+
+	/** the throttle allows fetching again, start queued fetches */
+	public void resume() {
+		_scheduler.pump();
+	}
+
+	public synchronized int getItemsTotal() {
 		return itemsTotal;
 	}
 
-	public int getItemsDone() {
+	public synchronized int getItemsDone() {
 		return itemsDone;
 	}
 
-	public int getItemsError() {
+	public synchronized int getItemsError() {
 		return itemsError;
 	}
-	public int getItemsLeft() {
+
+	public synchronized int getItemsLeft() {
 		return itemsLeft;
 	}
 
+	public synchronized int getItemsSkipped() {
+		return itemsSkipped;
+	}
+
+	/** items sharing the fetch of another item with the same key */
+	public synchronized int getItemsDuplicate() {
+		return itemsDuplicate;
+	}
+
+	/** size of all fetched items, shared fetches counted once */
+	public synchronized long getBytesFetched() {
+		return bytesFetched;
+	}
+
+	public int getItemsQueued() {
+		return _scheduler.getPending();
+	}
+
+	public int getItemsRunning() {
+		return _scheduler.getInFlight();
+	}
+
 	public synchronized HashMap<String, String> getProgressStats() {
 		HashMap<String, String> result = new HashMap<String, String>();
 		for (String name:_statusByName.keySet()) {